@@ -1,25 +1,71 @@
 
 import javax.imageio.ImageIO;
+import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.Clip;
+import javax.sound.sampled.SourceDataLine;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.awt.image.VolatileImage;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 class MapManager {
 
      Map1 map;
+     private final ArrayList<Brick> nearbyBricks = new ArrayList<>();
+     private final ArrayList<GameObject> toBeRemoved = new ArrayList<>();
+     @SuppressWarnings({"unchecked", "rawtypes"})
+     private ArrayList<Brick>[] sliceBricks = new ArrayList[0];
+     private SweepAndPrune movingPairs;
 
      MapManager() {}
 
@@ -34,8 +80,11 @@ class MapManager {
         Mario mario = getMario();
         mario.resetLocation();
         engine.resetCamera();
-        createMap(engine.getImageLoader(), map.getPath());
-        map.setMario(mario);
+        map.reset();
+    }
+
+     void setMap(Map1 map) {
+        this.map = map;
     }
 
      boolean createMap(ImageLoader loader, String path) {
@@ -70,8 +119,18 @@ class MapManager {
         return getMario().getCoins();
     }
 
-    public void drawMap(Graphics2D g2) {
-        map.drawMap(g2);
+    public void updateChunks(double viewX, int viewWidth) {
+        if (map != null)
+            map.updateChunks(viewX, viewWidth);
+    }
+
+    public void addSprites(RenderSnapshot snapshot, double viewX, double viewY, int viewWidth, int viewHeight, double interpolation) {
+        map.addSprites(snapshot, viewX, viewY, viewWidth, viewHeight, interpolation);
+    }
+
+    void savePreviousLocations() {
+        if (map != null)
+            map.savePreviousLocations();
     }
 
     public int passMission() {
@@ -93,6 +152,8 @@ class MapManager {
             return;
         }
 
+        // Mario's push-out from bricks moves him less than the sweep's padding, one sweep serves both passes
+        movingPairs = map.findMovingPairs();
         checkBottomCollisions(engine);
         checkTopCollisions(engine);
         checkMarioHorizontalCollision(engine);
@@ -102,27 +163,26 @@ class MapManager {
 
     private void checkBottomCollisions(GameEngine engine) {
         Mario mario = getMario();
-        ArrayList<Brick> bricks = map.getAllBricks();
-        ArrayList<Enemy> enemies = map.getEnemies();
-        ArrayList<GameObject> toBeRemoved = new ArrayList<>();
-
-        Rectangle marioBottomBounds = mario.getBottomBounds();
+        ArrayList<Brick> bricks = getBricksNear(mario);
+        SweepAndPrune pairs = movingPairs;
+        ArrayList<GameObject> toBeRemoved = this.toBeRemoved;
+        toBeRemoved.clear();
 
         if (!mario.isJumping())
             mario.setFalling(true);
 
-        for (Brick brick : bricks) {
-            Rectangle brickTopBounds = brick.getTopBounds();
-            if (marioBottomBounds.intersects(brickTopBounds)) {
+        for (int i = 0; i < bricks.size(); i++) {
+            Brick brick = bricks.get(i);
+            if (mario.intersects(GameObject.BOTTOM, brick, GameObject.TOP)) {
                 mario.setY(brick.getY() - mario.getDimension().height + 1);
                 mario.setFalling(false);
                 mario.setVelY(0);
             }
         }
 
-        for (Enemy enemy : enemies) {
-            Rectangle enemyTopBounds = enemy.getTopBounds();
-            if (marioBottomBounds.intersects(enemyTopBounds)) {
+        for (int i = 0; i < pairs.getPairCount(); i++) {
+            Enemy enemy = pairs.getEnemyPairedWith(i, mario);
+            if (enemy != null && mario.intersects(GameObject.BOTTOM, enemy, GameObject.TOP)) {
                 mario.acquirePoints(100);
                 toBeRemoved.add(enemy);
                 engine.playStomp();
@@ -140,12 +200,11 @@ class MapManager {
 
     private void checkTopCollisions(GameEngine engine) {
         Mario mario = getMario();
-        ArrayList<Brick> bricks = map.getAllBricks();
+        ArrayList<Brick> bricks = getBricksNear(mario);
 
-        Rectangle marioTopBounds = mario.getTopBounds();
-        for (Brick brick : bricks) {
-            Rectangle brickBottomBounds = brick.getBottomBounds();
-            if (marioTopBounds.intersects(brickBottomBounds)) {
+        for (int i = 0; i < bricks.size(); i++) {
+            Brick brick = bricks.get(i);
+            if (mario.intersects(GameObject.TOP, brick, GameObject.BOTTOM)) {
                 mario.setVelY(0);
                 mario.setY(brick.getY() + brick.getDimension().height);
             }
@@ -154,18 +213,20 @@ class MapManager {
 
     private void checkMarioHorizontalCollision(GameEngine engine){
         Mario mario = getMario();
-        ArrayList<Brick> bricks = map.getAllBricks();
-        ArrayList<Enemy> enemies = map.getEnemies();
-        ArrayList<GameObject> toBeRemoved = new ArrayList<>();
+        ArrayList<Brick> bricks = getBricksNear(mario);
+        SweepAndPrune pairs = movingPairs;
+        ArrayList<GameObject> toBeRemoved = this.toBeRemoved;
+        toBeRemoved.clear();
 
         boolean marioDies = false;
         boolean toRight = mario.getToRight();
 
-        Rectangle marioBounds = toRight ? mario.getRightBounds() : mario.getLeftBounds();
+        int marioSide = toRight ? GameObject.RIGHT : GameObject.LEFT;
+        int otherSide = !toRight ? GameObject.RIGHT : GameObject.LEFT;
 
-        for (Brick brick : bricks) {
-            Rectangle brickBounds = !toRight ? brick.getRightBounds() : brick.getLeftBounds();
-            if (marioBounds.intersects(brickBounds)) {
+        for (int i = 0; i < bricks.size(); i++) {
+            Brick brick = bricks.get(i);
+            if (mario.intersects(marioSide, brick, otherSide)) {
                 mario.setVelX(0);
                 if(toRight)
                     mario.setX(brick.getX() - mario.getDimension().width);
@@ -174,9 +235,9 @@ class MapManager {
             }
         }
 
-        for(Enemy enemy : enemies){
-            Rectangle enemyBounds = !toRight ? enemy.getRightBounds() : enemy.getLeftBounds();
-            if (marioBounds.intersects(enemyBounds)) {
+        for (int i = 0; i < pairs.getPairCount(); i++) {
+            Enemy enemy = pairs.getEnemyPairedWith(i, mario);
+            if (enemy != null && mario.intersects(marioSide, enemy, otherSide)) {
                 marioDies = mario.onTouchEnemy(engine);
                 toBeRemoved.add(enemy);
             }
@@ -184,9 +245,9 @@ class MapManager {
         removeObjects(toBeRemoved);
 
 
-        if (mario.getX() <= engine.getCameraLocation().getX() && mario.getVelX() < 0) {
+        if (mario.getX() <= engine.getCameraX() && mario.getVelX() < 0) {
             mario.setVelX(0);
-            mario.setX(engine.getCameraLocation().getX());
+            mario.setX((int)engine.getCameraX());
         }
 
         if(marioDies) {
@@ -194,59 +255,89 @@ class MapManager {
         }
     }
 
+    // each enemy only reads the bricks and writes its own state, so splitting the awake enemies into
+    // slices checked on the common pool gives the same result as the sequential loop
     private void checkEnemyCollisions() {
-        ArrayList<Brick> bricks = map.getAllBricks();
-        ArrayList<Enemy> enemies = map.getEnemies();
+        ArrayList<Enemy> enemies = map.getAwakeEnemies();
+
+        if (!map.isParallelPhase()) {
+            for (int i = 0; i < enemies.size(); i++) {
+                checkEnemyCollision(enemies.get(i), nearbyBricks);
+            }
+            return;
+        }
 
-        for (Enemy enemy : enemies) {
-            boolean standsOnBrick = false;
+        int slices = (enemies.size() + Map1.PARALLEL_SLICE - 1) / Map1.PARALLEL_SLICE;
+        if (sliceBricks.length < slices) {
+            int oldLength = sliceBricks.length;
+            sliceBricks = Arrays.copyOf(sliceBricks, Math.max(slices, oldLength * 2));
+            for (int i = oldLength; i < sliceBricks.length; i++)
+                sliceBricks[i] = new ArrayList<>();
+        }
 
-            for (Brick brick : bricks) {
-                Rectangle enemyBounds = enemy.getLeftBounds();
-                Rectangle brickBounds = brick.getRightBounds();
+        IntStream.range(0, slices).parallel().forEach(slice -> {
+            ArrayList<Brick> bricks = sliceBricks[slice];
+            int end = Math.min(enemies.size(), (slice + 1) * Map1.PARALLEL_SLICE);
+            for (int i = slice * Map1.PARALLEL_SLICE; i < end; i++) {
+                checkEnemyCollision(enemies.get(i), bricks);
+            }
+        });
+    }
 
-                Rectangle enemyBottomBounds = enemy.getBottomBounds();
-                Rectangle brickTopBounds = brick.getTopBounds();
+    private void checkEnemyCollision(Enemy enemy, ArrayList<Brick> bricks) {
+        boolean standsOnBrick = false;
+        getBricksNear(enemy, bricks);
 
-                if (enemy.getVelX() > 0) {
-                    enemyBounds = enemy.getRightBounds();
-                    brickBounds = brick.getLeftBounds();
-                }
+        int enemySide = enemy.getVelX() > 0 ? GameObject.RIGHT : GameObject.LEFT;
+        int brickSide = enemy.getVelX() > 0 ? GameObject.LEFT : GameObject.RIGHT;
 
-                if (enemyBounds.intersects(brickBounds)) {
-                    enemy.setVelX(-enemy.getVelX());
-                }
+        for (int j = 0; j < bricks.size(); j++) {
+            Brick brick = bricks.get(j);
 
-                if (enemyBottomBounds.intersects(brickTopBounds)){
-                    enemy.setFalling(false);
-                    enemy.setVelY(0);
-                    enemy.setY(brick.getY()-enemy.getDimension().height);
-                    standsOnBrick = true;
-                }
+            if (enemy.intersects(enemySide, brick, brickSide)) {
+                enemy.setVelX(-enemy.getVelX());
             }
 
-            if(enemy.getY() + enemy.getDimension().height > map.getBottomBorder()){
+            if (enemy.intersects(GameObject.BOTTOM, brick, GameObject.TOP)){
                 enemy.setFalling(false);
                 enemy.setVelY(0);
-                enemy.setY(map.getBottomBorder()-enemy.getDimension().height);
+                enemy.setY(brick.getY()-enemy.getDimension().height);
+                standsOnBrick = true;
             }
+        }
 
-            if (!standsOnBrick && enemy.getY() < map.getBottomBorder()){
-                enemy.setFalling(true);
-            }
+        if(enemy.getY() + enemy.getDimension().height > map.getBottomBorder()){
+            enemy.setFalling(false);
+            enemy.setVelY(0);
+            enemy.setY(map.getBottomBorder()-enemy.getDimension().height);
+        }
+
+        if (!standsOnBrick && enemy.getY() < map.getBottomBorder()){
+            enemy.setFalling(true);
         }
     }
 
 
     private void checkFireballContact() {
-        ArrayList<Enemy> enemies = map.getEnemies();
-        ArrayList<Brick> bricks = map.getAllBricks();
-        ArrayList<GameObject> toBeRemoved = new ArrayList<>();
+        ArrayList<GameObject> toBeRemoved = this.toBeRemoved;
+        toBeRemoved.clear();
 
 
         removeObjects(toBeRemoved);
     }
 
+    // only the bricks sharing a grid cell with the object can touch any of its bounds
+    private ArrayList<Brick> getBricksNear(GameObject object) {
+        return getBricksNear(object, nearbyBricks);
+    }
+
+    private ArrayList<Brick> getBricksNear(GameObject object, ArrayList<Brick> result) {
+        double x = object.getX(), y = object.getY();
+        Dimension dimension = object.getDimension();
+        map.getBricksNear(x - 1, y - 1, x + dimension.width + 1, y + dimension.height + 1, result);
+        return result;
+    }
+
     private void removeObjects(ArrayList<GameObject> list){
         if(list == null)
             return;
@@ -264,16 +355,42 @@ class MapManager {
     public int getRemainingTime() {
         return (int)map.getRemainingTime();
     }
+
+    // folds everything the simulation changes into one value, replays compare it to spot divergence
+    public long getStateChecksum() {
+        if (map == null)
+            return 0;
+
+        Mario mario = getMario();
+        long hash = Double.doubleToLongBits(map.getRemainingTime());
+        hash = hash * 31 + Double.doubleToLongBits(mario.getX());
+        hash = hash * 31 + Double.doubleToLongBits(mario.getY());
+        hash = hash * 31 + Double.doubleToLongBits(mario.getVelX());
+        hash = hash * 31 + Double.doubleToLongBits(mario.getVelY());
+        hash = hash * 31 + mario.getPoints();
+        hash = hash * 31 + mario.getRemainingLives();
+        hash = hash * 31 + mario.getCoins();
+
+        ArrayList<Enemy> enemies = map.getEnemies();
+        for (int i = 0; i < enemies.size(); i++) {
+            Enemy enemy = enemies.get(i);
+            hash = hash * 31 + Double.doubleToLongBits(enemy.getX());
+            hash = hash * 31 + Double.doubleToLongBits(enemy.getY());
+            hash = hash * 31 + Double.doubleToLongBits(enemy.getVelX());
+        }
+        return hash;
+    }
 }
 
 
-  class GameEngine implements Runnable {
+  class GameEngine implements Runnable, LoopTarget {
 
     private final static int WIDTH = 1268, HEIGHT = 708;
+    private final static int TICKS_PER_SECOND = 60;
 
     private MapManager mapManager;
-    private UIManager uiManager;
-    private SoundManager soundManager;
+    private GameView uiManager;
+    private GameAudio soundManager;
     private GameStatus gameStatus;
     private boolean isRunning;
     private Camera camera;
@@ -281,22 +398,95 @@ class MapManager {
     private Thread thread;
     private StartScreenSelection startScreenSelection = StartScreenSelection.START_GAME;
     private int selectedMap = 0;
+    private long simulatedTicks = 0;
+    private boolean simulatedLastTick;
+    private int tickRate = TICKS_PER_SECOND;
+    private final SnapshotExchange snapshots = new SnapshotExchange();
+    private LoopScheduler scheduler;
+
+    // input arrives on the EDT and is only applied at the start of a tick, see processInput
+    private final InputQueue inputQueue = new InputQueue(256);
+    private final LatencyHistogram inputToTick = new LatencyHistogram(), inputToPresent = new LatencyHistogram();
+    private int keyState = 0;
+    // where the last queued pointer press happened
+    private final Point pointerLocation = new Point();
+    private long pendingInputTime = 0, lastInputStatistics = 0;
+    private boolean printInputStatistics;
+
+    // -Dmario.record=<file> writes the actions of every played map to the file, see InputRecording
+    // the shutdown hook finishes the recording while the game thread may still be appending to it,
+    // so both only touch it while holding recordingLock
+    private File recordingFile;
+    private InputRecording recording;
+    private final Object recordingLock = new Object();
+    private int recordedTicks;
+    private long seed = 0;
+    private Random random = new Random(0);
+
+    // off unless -Dmario.rewind=true, it keeps a direct buffer of -Dmario.rewind.budget bytes (4 MiB by default)
+    // for -Dmario.rewind.seconds of history. Backspace does nothing without it
+    private WorldHistory history;
+    private boolean rewinding;
+    private int rewindSeconds, rewindBudget;
+    private ByteBuffer stateBuffer = ByteBuffer.allocate(4096);
+    private long lastRewindStatistics = 0;
+    private boolean printRewindStatistics;
 
     private GameEngine() {
         init();
     }
 
-    private void init() {
-        imageLoader = new ImageLoader();
-        InputManager inputManager = new InputManager(this);
+    private GameEngine(GameAudio soundManager, GameView view) {
+        initCore(soundManager);
+        this.uiManager = view;
+    }
+
+    // an engine without window, audio or game thread, driven by calling tick()
+    static GameEngine createHeadless() {
+        return new GameEngine(new SilentAudio(), new HeadlessView());
+    }
+
+    private void initCore(GameAudio soundManager) {
+        imageLoader = ImageLoader.getInstance();
         gameStatus = GameStatus.MAP_SELECTION;
         camera = new Camera();
-        uiManager = new UIManager(this, WIDTH, HEIGHT);
-        soundManager = new SoundManager();
+        this.soundManager = soundManager;
         mapManager = new MapManager();
+    }
+
+    // -Dmario.render.active=true draws from the game thread through a BufferStrategy instead of repaint(),
+    // -Dmario.render.buffers (2 or 3) and -Dmario.render.vsync tune it. vsync also needs
+    // --add-exports java.desktop/sun.java2d.pipe.hw=ALL-UNNAMED, see CanvasView.withVSync
+    private void init() {
+        initCore(new SoundManager());
+        tickRate = Math.max(1, Integer.getInteger("mario.loop.tickRate", TICKS_PER_SECOND));
+        scheduler = createScheduler(tickRate);
+        printInputStatistics = Boolean.getBoolean("mario.input.stats");
+        seed = Long.getLong("mario.seed", System.nanoTime());
+        if (Boolean.getBoolean("mario.rewind"))
+            enableRewind(Integer.getInteger("mario.rewind.seconds", 10), Integer.getInteger("mario.rewind.budget", 4 << 20));
+        printRewindStatistics = Boolean.getBoolean("mario.rewind.stats");
+        String recordPath = System.getProperty("mario.record");
+        if (recordPath != null)
+            recordTo(new File(recordPath));
+        InputManager inputManager = new InputManager(inputQueue);
+        UIManager uiManager = new UIManager(this, WIDTH, HEIGHT);
+        this.uiManager = uiManager;
+
+        boolean activeRendering = Boolean.getBoolean("mario.render.active");
+        CanvasView canvasView = null;
 
         JFrame frame = new JFrame("Super Mario Bros.");
-        frame.add(uiManager);
+        if (activeRendering) {
+            canvasView = new CanvasView(uiManager, WIDTH, HEIGHT);
+            canvasView.addMouseListener(inputManager);
+            inputManager.setPointerTarget(canvasView);
+            frame.add(canvasView);
+        }
+        else {
+            inputManager.setPointerTarget(uiManager);
+            frame.add(uiManager);
+        }
         frame.addKeyListener(inputManager);
         frame.addMouseListener(inputManager);
         frame.pack();
@@ -305,9 +495,35 @@ class MapManager {
         frame.setLocationRelativeTo(null);
         frame.setVisible(true);
 
+        if (canvasView != null && canvasView.createStrategy(Integer.getInteger("mario.render.buffers", 2), Boolean.getBoolean("mario.render.vsync"))) {
+            this.uiManager = canvasView;
+        }
+        else if (canvasView != null) {
+            frame.remove(canvasView);
+            frame.add(uiManager);
+            frame.pack();
+        }
+
         start();
     }
 
+    // -Dmario.loop=spin keeps the old busy loop, otherwise a sleeping fixed-step loop capped at -Dmario.loop.frameCap
+    // frames per second with at most -Dmario.loop.maxCatchUp make-up ticks, -Dmario.loop.stats prints its rates together with the
+    // image cache counters and, with active rendering, the present times
+    private static LoopScheduler createScheduler(int tickRate) {
+        if ("spin".equals(System.getProperty("mario.loop")))
+            return new BusySpinScheduler(tickRate);
+
+        FixedStepScheduler scheduler = new FixedStepScheduler(tickRate, Integer.getInteger("mario.loop.frameCap", tickRate),
+                Integer.getInteger("mario.loop.maxCatchUp", 5));
+        scheduler.setPrintStatistics(Boolean.getBoolean("mario.loop.stats"));
+        return scheduler;
+    }
+
+      LoopScheduler getScheduler() {
+        return scheduler;
+    }
+
     private synchronized void start() {
         if (isRunning)
             return;
@@ -327,8 +543,8 @@ class MapManager {
         soundManager.restartBackground();
     }
 
-      void selectMapViaMouse() {
-        String path = uiManager.selectMapViaMouse(uiManager.getMousePosition());
+      void selectMapViaMouse(Point location) {
+        String path = uiManager.selectMapViaMouse(location, selectedMap);
         if (path != null) {
             createMap(path);
         }
@@ -345,9 +561,22 @@ class MapManager {
         selectedMap = uiManager.changeSelectedMap(selectedMap, up);
     }
 
+      boolean loadMap(String path) {
+        createMap(path);
+        return gameStatus == GameStatus.RUNNING;
+    }
+
     private void createMap(String path) {
         boolean loaded = mapManager.createMap(imageLoader, path);
         if(loaded){
+            updateChunks();
+            // the map timer counts off simulatedTicks, a replay starts it from zero as well
+            simulatedTicks = 0;
+            random = new Random(seed);
+            rewinding = false;
+            if (history != null)
+                history.clear();
+            startRecording(path);
             setGameStatus(GameStatus.RUNNING);
             soundManager.restartBackground();
         }
@@ -358,44 +587,179 @@ class MapManager {
 
     @Override
     public void run() {
-        long lastTime = System.nanoTime();
-        double amountOfTicks = 60.0;
-        double ns = 1000000000 / amountOfTicks;
-        double delta = 0;
-        long timer = System.currentTimeMillis();
+        scheduler.run(this);
+    }
+
+    @Override
+    public boolean isActive() {
+        return isRunning && !thread.isInterrupted();
+    }
 
-        while (isRunning && !thread.isInterrupted()) {
+    @Override
+    public String getStatistics() {
+        ImageLoader images = ImageLoader.getInstance();
+        String statistics = String.format(", images %d cached %d hits %d misses",
+                images.getCachedCount(), images.getHitCount(), images.getMissCount());
+        if (uiManager instanceof CanvasView) {
+            CanvasView view = (CanvasView) uiManager;
+            statistics += String.format(", present %.2f ms last %.2f ms avg %.2f ms max", view.getLastPresentNanos() / 1e6,
+                    view.getAveragePresentNanos() / 1e6, view.getMaxPresentNanos() / 1e6);
+        }
+        return statistics;
+    }
+
+    @Override
+    public void render(double interpolation) {
+        publishSnapshot(interpolation);
+        render();
+    }
+
+    private void render() {
+        uiManager.render();
+    }
+
+      // advances the simulation by one tick, the map timer counts one second every tickRate ticks
+    @Override
+    public void tick() {
+        processInput();
+        simulatedLastTick = false;
+        if (gameStatus == GameStatus.RUNNING && rewinding && history != null) {
+            // holding rewind steps back one captured tick per tick and stops at the oldest one
+            history.rewind(this);
+        }
+        else if (gameStatus == GameStatus.RUNNING) {
+            simulatedLastTick = true;
+            gameLoop();
+            simulatedTicks++;
+            if (simulatedTicks % tickRate == 0 && gameStatus == GameStatus.RUNNING) {
+                mapManager.updateTime();
+            }
+
+            if (history != null && gameStatus == GameStatus.RUNNING)
+                history.capture(this);
+        }
 
+        if (printRewindStatistics && history != null) {
             long now = System.nanoTime();
-            delta += (now - lastTime) / ns;
-            lastTime = now;
-            while (delta >= 1) {
-                if (gameStatus == GameStatus.RUNNING) {
-                    gameLoop();
-                }
-                delta--;
+            if (now - lastRewindStatistics >= 5000000000L) {
+                System.out.println(history);
+                lastRewindStatistics = now;
             }
-            render();
+        }
 
-            if(gameStatus != GameStatus.RUNNING) {
-                timer = System.currentTimeMillis();
+        synchronized (recordingLock) {
+            if (recording != null) {
+                recordedTicks++;
+                if (gameStatus != GameStatus.RUNNING && gameStatus != GameStatus.PAUSED)
+                    finishRecording(true);
             }
+        }
+    }
 
-            if (System.currentTimeMillis() - timer > 1000) {
-                timer += 1000;
-                mapManager.updateTime();
+      // a recording cut short by the JVM exiting is still written, without a checksum
+      void recordTo(File file) {
+        if (recordingFile == null)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> finishRecording(false)));
+        recordingFile = file;
+    }
+
+    private void startRecording(String path) {
+        if (recordingFile == null)
+            return;
+
+        synchronized (recordingLock) {
+            finishRecording(false);
+            recording = new InputRecording(path, seed, tickRate);
+            recording.setRewind(getRewindSeconds(), getRewindBudget());
+            recordedTicks = 0;
+        }
+    }
+
+    // ticks count from the tick the map was loaded in, paused ticks included, so a replay lines up exactly;
+    // only a recording finished at the end of a tick carries a checksum to verify against, the world is
+    // not read otherwise because the shutdown hook can run in the middle of a tick
+    private void finishRecording(boolean atTickEnd) {
+        synchronized (recordingLock) {
+            if (recording == null)
+                return;
+
+            recording.finish(recordedTicks, atTickEnd, atTickEnd ? getStateChecksum() : 0);
+            try {
+                recording.write(recordingFile);
+                System.out.println("Recorded " + recordedTicks + " ticks to " + recordingFile);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
             }
+            recording = null;
         }
     }
 
-    private void render() {
-        uiManager.repaint();
+      long getStateChecksum() {
+        return mapManager.getStateChecksum() * 31 + Double.doubleToLongBits(camera.getX()) * 31 + gameStatus.ordinal();
+    }
+
+      void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+      void enableRewind(int seconds, int budgetBytes) {
+        rewindSeconds = seconds;
+        rewindBudget = budgetBytes;
+        history = seconds > 0 && budgetBytes > 0 ? new WorldHistory(seconds * tickRate, budgetBytes, tickRate / 2) : null;
+    }
+
+      WorldHistory getHistory() {
+        return history;
+    }
+
+      int getRewindSeconds() {
+        return history != null ? rewindSeconds : 0;
+    }
+
+      int getRewindBudget() {
+        return history != null ? rewindBudget : 0;
+    }
+
+      // the world as the simulation sees it, the returned buffer is reused by the next call
+      ByteBuffer writeState() {
+        int size = 64 + mapManager.map.getStateSize();
+        if (stateBuffer.capacity() < size)
+            stateBuffer = ByteBuffer.allocate(Math.max(size, stateBuffer.capacity() * 2));
+
+        stateBuffer.clear();
+        stateBuffer.putLong(simulatedTicks);
+        camera.writeState(stateBuffer);
+        mapManager.map.writeState(stateBuffer);
+        stateBuffer.flip();
+        return stateBuffer;
+    }
+
+      void readState(ByteBuffer in) {
+        simulatedTicks = in.getLong();
+        camera.readState(in);
+        mapManager.map.readState(in);
+    }
+
+      void setTickRate(int tickRate) {
+        this.tickRate = Math.max(1, tickRate);
+    }
+
+      // the only source of randomness gameplay may use, reseeded on every map load so replays match
+      Random getRandom() {
+        return random;
+    }
+
+      long getSimulatedTicks() {
+        return simulatedTicks;
     }
 
     private void gameLoop() {
+        mapManager.savePreviousLocations();
+        camera.savePreviousLocation();
         updateLocations();
         checkCollisions();
         updateCamera();
+        updateChunks();
 
         if (isGameOver()) {
             setGameStatus(GameStatus.GAME_OVER);
@@ -425,11 +789,21 @@ class MapManager {
         mapManager.updateLocations();
     }
 
+    private void updateChunks() {
+        mapManager.updateChunks(camera.getX(), WIDTH);
+    }
+
     private void checkCollisions() {
         mapManager.checkCollisions(this);
     }
 
       void receiveInput(ButtonAction input) {
+        if (input == ButtonAction.NO_ACTION)
+            return;
+        synchronized (recordingLock) {
+            if (recording != null)
+                recording.record(recordedTicks, input);
+        }
 
         if (gameStatus == GameStatus.START_SCREEN) {
             if (input == ButtonAction.SELECT && startScreenSelection == StartScreenSelection.START_GAME) {
@@ -456,7 +830,9 @@ class MapManager {
             }
         } else if (gameStatus == GameStatus.RUNNING) {
             Mario mario = mapManager.getMario();
-            if (input == ButtonAction.JUMP) {
+            if (input == ButtonAction.REWIND) {
+                rewinding = true;
+            } else if (input == ButtonAction.JUMP) {
                 mario.jump(this);
             } else if (input == ButtonAction.M_RIGHT) {
                 mario.move(true, camera);
@@ -481,6 +857,85 @@ class MapManager {
         if(input == ButtonAction.GO_TO_START_SCREEN){
             setGameStatus(GameStatus.START_SCREEN);
         }
+        if(input == ButtonAction.REWIND_COMPLETED){
+            rewinding = false;
+        }
+    }
+
+    // folds the queued events into the held key bitmask, auto-repeat (repeated presses or release/press
+    // pairs within one tick) produces no edge, a press and release within one tick still counts as a tap
+    private void processInput() {
+        int before = keyState, after = keyState;
+        int pressedDuring = 0, releasedDuring = 0;
+        long now = System.nanoTime();
+
+        while (inputQueue.poll()) {
+            int bit = 1 << inputQueue.getKey();
+            if (inputQueue.isPressed()) {
+                if ((after & bit) == 0)
+                    pressedDuring |= bit;
+                after |= bit;
+                if (inputQueue.getKey() == InputQueue.POINTER)
+                    pointerLocation.setLocation(inputQueue.getX(), inputQueue.getY());
+            }
+            else {
+                releasedDuring |= bit;
+                after &= ~bit;
+            }
+
+            long time = inputQueue.getTime();
+            inputToTick.record(now - time);
+            if (pendingInputTime == 0 || time - pendingInputTime < 0)
+                pendingInputTime = time;
+        }
+        keyState = after;
+
+        int pressed = pressedDuring & ~before;
+        int released = releasedDuring & ~after;
+        for (int key = 0; key < InputQueue.KEY_COUNT; key++) {
+            if ((pressed & (1 << key)) != 0)
+                keyPressed(key);
+        }
+        if ((released & (1 << InputQueue.LEFT | 1 << InputQueue.RIGHT)) != 0)
+            receiveInput(ButtonAction.ACTION_COMPLETED);
+        if ((released & 1 << InputQueue.REWIND) != 0)
+            receiveInput(ButtonAction.REWIND_COMPLETED);
+
+        if (printInputStatistics && now - lastInputStatistics >= 5000000000L) {
+            System.out.println("input to tick " + inputToTick + ", input to present " + inputToPresent);
+            lastInputStatistics = now;
+        }
+    }
+
+    private void keyPressed(int key) {
+        if (key == InputQueue.POINTER) {
+            if (gameStatus == GameStatus.MAP_SELECTION)
+                selectMapViaMouse(pointerLocation);
+        }
+        else {
+            receiveInput(InputManager.toAction(key, gameStatus));
+        }
+    }
+
+      // called by the view once the frame drawn from the snapshot is on screen
+      void framePresented(RenderSnapshot frame) {
+        long inputTime = frame.getInputTime();
+        if (inputTime != 0) {
+            inputToPresent.record(System.nanoTime() - inputTime);
+            frame.setInputTime(0);
+        }
+    }
+
+      InputQueue getInputQueue() {
+        return inputQueue;
+    }
+
+      LatencyHistogram getInputToTickLatency() {
+        return inputToTick;
+    }
+
+      LatencyHistogram getInputToPresentLatency() {
+        return inputToPresent;
     }
 
     private void selectOption(boolean selectUp) {
@@ -545,14 +1000,42 @@ class MapManager {
         return selectedMap;
     }
 
-      void drawMap(Graphics2D g2) {
-        mapManager.drawMap(g2);
+      // fills the next snapshot with everything a frame needs and hands it to the renderer, game thread only
+      void publishSnapshot(double interpolation) {
+        // previous locations are only saved by a simulated tick, once the simulation stops they stay one tick
+        // behind and interpolating between them would move everything back and forth on every frame
+        if (!simulatedLastTick)
+            interpolation = 1;
+
+        RenderSnapshot snapshot = snapshots.beginWrite();
+        snapshot.clear();
+        snapshot.setScreen(gameStatus, startScreenSelection, selectedMap);
+        snapshot.setInputTime(pendingInputTime);
+        pendingInputTime = 0;
+
+        boolean inMap = gameStatus == GameStatus.RUNNING || gameStatus == GameStatus.PAUSED || gameStatus == GameStatus.MISSION_PASSED;
+        if (inMap && mapManager.map != null) {
+            double cameraX = camera.getInterpolatedX(interpolation), cameraY = camera.getInterpolatedY(interpolation);
+            snapshot.setCamera((int)cameraX, (int)cameraY);
+            snapshot.setHud(getScore(), getRemainingLives(), getCoins(), getRemainingTime());
+            mapManager.addSprites(snapshot, cameraX, cameraY, WIDTH, HEIGHT, interpolation);
+        }
+
+        snapshots.publish();
+    }
+
+      RenderSnapshot acquireSnapshot() {
+        return snapshots.acquire();
     }
 
       Point getCameraLocation() {
         return new Point((int)camera.getX(), (int)camera.getY());
     }
 
+      double getCameraX() {
+        return camera.getX();
+    }
+
     private int passMission(){
         return mapManager.passMission();
     }
@@ -605,9 +1088,208 @@ class MapManager {
 
 
 
+  interface LoopTarget {
+
+    boolean isActive();
+
+    void tick();
+
+    // interpolation is the fraction of a tick that has passed since the last one, between 0 and 1
+    void render(double interpolation);
+
+    // appended to the scheduler's once a second statistics line
+    default String getStatistics() {
+        return "";
+    }
+}
+
+  interface LoopScheduler {
+
+    void run(LoopTarget target);
+
+    double getTicksPerSecond();
+
+    double getFramesPerSecond();
+
+    // milliseconds of CPU time the loop thread used during the last second
+    double getCpuMillisPerSecond();
+}
+
+  class FixedStepScheduler implements LoopScheduler {
+
+    private static final long SPIN_NANOS = 1000000;
+
+    private final long tickNanos, frameNanos;
+    private final int maxCatchUpTicks;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private boolean printStatistics;
+
+    private volatile double ticksPerSecond, framesPerSecond, cpuMillisPerSecond;
+    private volatile long droppedTicks;
+
+      // a frame cap of zero or less draws once after every batch of ticks
+      FixedStepScheduler(int tickRate, int frameCap, int maxCatchUpTicks) {
+        this.tickNanos = 1000000000L / tickRate;
+        this.frameNanos = frameCap > 0 ? 1000000000L / frameCap : 0;
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+    }
+
+    @Override
+    public void run(LoopTarget target) {
+        long now = System.nanoTime();
+        long nextTick = now + tickNanos;
+        long nextFrame = now;
+        long windowStart = now, windowCpu = cpuTime();
+        int windowTicks = 0, windowFrames = 0;
+
+        while (target.isActive()) {
+            now = System.nanoTime();
+
+            int ticks = 0;
+            while (now >= nextTick && ticks < maxCatchUpTicks) {
+                target.tick();
+                nextTick += tickNanos;
+                ticks++;
+            }
+
+            // after a long stall the backlog is dropped instead of being made up in a burst
+            if (now >= nextTick) {
+                droppedTicks += (now - nextTick) / tickNanos + 1;
+                nextTick = now + tickNanos;
+            }
+            windowTicks += ticks;
+
+            boolean frameDue = frameNanos > 0 ? now >= nextFrame : ticks > 0;
+            if (frameDue) {
+                double interpolation = 1 - (double)(nextTick - now) / tickNanos;
+                target.render(Math.max(0, Math.min(1, interpolation)));
+                windowFrames++;
+                nextFrame = Math.max(nextFrame + frameNanos, now);
+            }
+
+            if (now - windowStart >= 1000000000L) {
+                long cpu = cpuTime();
+                double seconds = (now - windowStart) / 1e9;
+                ticksPerSecond = windowTicks / seconds;
+                framesPerSecond = windowFrames / seconds;
+                cpuMillisPerSecond = (cpu - windowCpu) / 1e6 / seconds;
+                if (printStatistics)
+                    System.out.printf("%.1f ticks/s, %.1f frames/s, %.1f ms cpu/s, %d dropped ticks%s%n",
+                            ticksPerSecond, framesPerSecond, cpuMillisPerSecond, droppedTicks, target.getStatistics());
+
+                windowStart = now;
+                windowCpu = cpu;
+                windowTicks = 0;
+                windowFrames = 0;
+            }
+
+            waitUntil(frameNanos > 0 ? Math.min(nextTick, nextFrame) : nextTick);
+        }
+    }
+
+    // parks for most of the wait and spins only for the last millisecond, parkNanos can wake up late
+    private static void waitUntil(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining > SPIN_NANOS)
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+
+        while (System.nanoTime() < deadline) {
+            Thread.onSpinWait();
+        }
+    }
+
+    private long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+      void setPrintStatistics(boolean printStatistics) {
+        this.printStatistics = printStatistics;
+    }
+
+      long getDroppedTicks() {
+        return droppedTicks;
+    }
+
+    @Override
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public double getCpuMillisPerSecond() {
+        return cpuMillisPerSecond;
+    }
+}
+
+  // the original loop: spins without sleeping and renders on every pass
+  class BusySpinScheduler implements LoopScheduler {
+
+    private final double tickNanos;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private volatile double ticksPerSecond, framesPerSecond, cpuMillisPerSecond;
+
+      BusySpinScheduler(int tickRate) {
+        this.tickNanos = 1e9 / tickRate;
+    }
+
+    @Override
+    public void run(LoopTarget target) {
+        long lastTime = System.nanoTime();
+        double delta = 0;
+        long windowStart = lastTime, windowCpu = threads.getCurrentThreadCpuTime();
+        int windowTicks = 0, windowFrames = 0;
+
+        while (target.isActive()) {
+            long now = System.nanoTime();
+            delta += (now - lastTime) / tickNanos;
+            lastTime = now;
+            while (delta >= 1) {
+                target.tick();
+                windowTicks++;
+                delta--;
+            }
+            target.render(delta);
+            windowFrames++;
+
+            if (now - windowStart >= 1000000000L) {
+                long cpu = threads.getCurrentThreadCpuTime();
+                double seconds = (now - windowStart) / 1e9;
+                ticksPerSecond = windowTicks / seconds;
+                framesPerSecond = windowFrames / seconds;
+                cpuMillisPerSecond = (cpu - windowCpu) / 1e6 / seconds;
+                windowStart = now;
+                windowCpu = cpu;
+                windowTicks = 0;
+                windowFrames = 0;
+            }
+        }
+    }
+
+    @Override
+    public double getTicksPerSecond() {
+        return ticksPerSecond;
+    }
+
+    @Override
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    @Override
+    public double getCpuMillisPerSecond() {
+        return cpuMillisPerSecond;
+    }
+}
+
 class Camera {
 
     private double x, y;
+    private double previousX, previousY;
     private int frameNumber;
     private boolean shaking;
 
@@ -634,11 +1316,36 @@ class Camera {
         this.y = y;
     }
 
+      void savePreviousLocation() {
+        previousX = x;
+        previousY = y;
+    }
+
+      double getInterpolatedX(double interpolation) {
+        return previousX + (x - previousX) * interpolation;
+    }
+
+      double getInterpolatedY(double interpolation) {
+        return previousY + (y - previousY) * interpolation;
+    }
+
       void shakeCamera() {
         shaking = true;
         frameNumber = 60;
     }
 
+      void writeState(ByteBuffer out) {
+        out.putDouble(x).putDouble(y).putInt(frameNumber).put((byte)(shaking ? 1 : 0));
+    }
+
+      void readState(ByteBuffer in) {
+        x = in.getDouble();
+        y = in.getDouble();
+        frameNumber = in.getInt();
+        shaking = in.get() != 0;
+        savePreviousLocation();
+    }
+
       void moveCam(double xAmount, double yAmount){
         if(shaking && frameNumber > 0){
             int direction = (frameNumber%2 == 0)? 1 : -1;
@@ -666,69 +1373,255 @@ class Camera {
     MISSION_PASSED,
     ABOUT_SCREEN
 }
-  class InputManager implements KeyListener, MouseListener{
-
-    private GameEngine engine;
+  // bounded queue of timestamped key events from the AWT threads to the game thread, a full queue drops the event.
+  // Pointer events carry where they happened in the view's coordinates
+  class InputQueue {
+
+    static final int UP = 0, DOWN = 1, LEFT = 2, RIGHT = 3, ENTER = 4, ESCAPE = 5, SPACE = 6, POINTER = 7, REWIND = 8;
+    static final int KEY_COUNT = 9;
+
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLongArray sequences;
+    private final int[] keys, xs, ys;
+    private final boolean[] pressed;
+    private final long[] times;
+    private final AtomicLong droppedCount = new AtomicLong();
+    private long tail = 0;
+
+    // the event read by the last successful poll, only valid on the consumer thread
+    private int polledKey, polledX, polledY;
+    private boolean polledPressed;
+    private long polledTime;
+
+      InputQueue(int capacity) {
+        this.capacity = capacity;
+        this.sequences = new AtomicLongArray(capacity);
+        this.keys = new int[capacity];
+        this.xs = new int[capacity];
+        this.ys = new int[capacity];
+        this.pressed = new boolean[capacity];
+        this.times = new long[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
 
-    InputManager(GameEngine engine) {
-        this.engine = engine; }
+      boolean offer(int key, boolean isPressed) {
+        return offer(key, isPressed, 0, 0);
+    }
 
-    @Override
-    public void keyPressed(KeyEvent event) {
-        int keyCode = event.getKeyCode();
-        GameStatus status = engine.getGameStatus();
-        ButtonAction currentAction = ButtonAction.NO_ACTION;
+      boolean offer(int key, boolean isPressed, int x, int y) {
+        long position = head.get();
+        while (true) {
+            int index = (int)(position % capacity);
+            long difference = sequences.get(index) - position;
 
-        if (keyCode == KeyEvent.VK_UP) {
-            if(status == GameStatus.START_SCREEN || status == GameStatus.MAP_SELECTION)
-                currentAction = ButtonAction.GO_UP;
-            else
-                currentAction = ButtonAction.JUMP;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1))
+                    break;
+                position = head.get();
+            }
+            else if (difference < 0) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            else {
+                position = head.get();
+            }
         }
-        else if(keyCode == KeyEvent.VK_DOWN){
-            if(status == GameStatus.START_SCREEN || status == GameStatus.MAP_SELECTION)
-                currentAction = ButtonAction.GO_DOWN;
+
+        int index = (int)(position % capacity);
+        keys[index] = key;
+        xs[index] = x;
+        ys[index] = y;
+        pressed[index] = isPressed;
+        times[index] = System.nanoTime();
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+      // single consumer, returns false when no complete event is queued
+      boolean poll() {
+        int index = (int)(tail % capacity);
+        if (sequences.get(index) != tail + 1)
+            return false;
+
+        polledKey = keys[index];
+        polledX = xs[index];
+        polledY = ys[index];
+        polledPressed = pressed[index];
+        polledTime = times[index];
+        sequences.lazySet(index, tail + capacity);
+        tail++;
+        return true;
+    }
+
+      int getKey() {
+        return polledKey;
+    }
+
+      boolean isPressed() {
+        return polledPressed;
+    }
+
+      int getX() {
+        return polledX;
+    }
+
+      int getY() {
+        return polledY;
+    }
+
+      long getTime() {
+        return polledTime;
+    }
+
+      long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
+
+  // power-of-two microsecond buckets, recorded by one thread and readable from any
+  class LatencyHistogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private volatile long count, maxNanos;
+
+      void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        count++;
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+    }
+
+      long getCount() {
+        return count;
+    }
+
+      long getMaxNanos() {
+        return maxNanos;
+    }
+
+      // upper bound of the bucket holding the given fraction of the samples
+      long getPercentileNanos(double fraction) {
+        long total = count;
+        if (total == 0)
+            return 0;
+
+        long target = (long)Math.ceil(total * fraction), seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= target)
+                return (1L << bucket) * 1000;
+        }
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d events, p50 <= %.2f ms, p99 <= %.2f ms, max %.2f ms", count,
+                getPercentileNanos(0.5) / 1e6, getPercentileNanos(0.99) / 1e6, maxNanos / 1e6);
+    }
+}
+
+  class InputManager implements KeyListener, MouseListener{
+
+    private final InputQueue inputQueue;
+    // pointer events are queued in this component's coordinates, whichever component received them
+    private volatile Component pointerTarget;
+
+    InputManager(InputQueue inputQueue) {
+        this.inputQueue = inputQueue; }
+
+      void setPointerTarget(Component pointerTarget) {
+        this.pointerTarget = pointerTarget;
+    }
+
+    private void offerPointer(MouseEvent event, boolean pressed) {
+        Point point = event.getPoint();
+        Component target = pointerTarget;
+        if (target != null && event.getComponent() != target)
+            point = SwingUtilities.convertPoint(event.getComponent(), point, target);
+        inputQueue.offer(InputQueue.POINTER, pressed, point.x, point.y);
+    }
+
+      // the game thread maps keys to actions, the meaning of some keys depends on the game status
+      static ButtonAction toAction(int key, GameStatus status) {
+        ButtonAction currentAction = ButtonAction.NO_ACTION;
+
+        if (key == InputQueue.UP) {
+            if(status == GameStatus.START_SCREEN || status == GameStatus.MAP_SELECTION)
+                currentAction = ButtonAction.GO_UP;
+            else
+                currentAction = ButtonAction.JUMP;
         }
-        else if (keyCode == KeyEvent.VK_RIGHT) {
+        else if(key == InputQueue.DOWN){
+            if(status == GameStatus.START_SCREEN || status == GameStatus.MAP_SELECTION)
+                currentAction = ButtonAction.GO_DOWN;
+        }
+        else if (key == InputQueue.RIGHT) {
             currentAction = ButtonAction.M_RIGHT;
         }
-        else if (keyCode == KeyEvent.VK_LEFT) {
+        else if (key == InputQueue.LEFT) {
             currentAction = ButtonAction.M_LEFT;
         }
-        else if (keyCode == KeyEvent.VK_ENTER) {
+        else if (key == InputQueue.ENTER) {
             currentAction = ButtonAction.SELECT;
         }
-        else if (keyCode == KeyEvent.VK_ESCAPE) {
+        else if (key == InputQueue.ESCAPE) {
             if(status == GameStatus.RUNNING || status == GameStatus.PAUSED )
                 currentAction = ButtonAction.PAUSE_RESUME;
             else
                 currentAction = ButtonAction.GO_TO_START_SCREEN;
 
         }
-        else if (keyCode == KeyEvent.VK_SPACE){
+        else if (key == InputQueue.SPACE){
             currentAction = ButtonAction.FIRE;
         }
+        else if (key == InputQueue.REWIND){
+            currentAction = ButtonAction.REWIND;
+        }
 
+        return currentAction;
+    }
 
-        notifyInput(currentAction);
+    private static int toKey(int keyCode) {
+        switch (keyCode) {
+            case KeyEvent.VK_UP: return InputQueue.UP;
+            case KeyEvent.VK_DOWN: return InputQueue.DOWN;
+            case KeyEvent.VK_LEFT: return InputQueue.LEFT;
+            case KeyEvent.VK_RIGHT: return InputQueue.RIGHT;
+            case KeyEvent.VK_ENTER: return InputQueue.ENTER;
+            case KeyEvent.VK_ESCAPE: return InputQueue.ESCAPE;
+            case KeyEvent.VK_SPACE: return InputQueue.SPACE;
+            case KeyEvent.VK_BACK_SPACE: return InputQueue.REWIND;
+            default: return -1;
+        }
     }
 
     @Override
-    public void mousePressed(MouseEvent e) {
-        if(engine.getGameStatus() == GameStatus.MAP_SELECTION){
-            engine.selectMapViaMouse();
-        }
+    public void keyPressed(KeyEvent event) {
+        int key = toKey(event.getKeyCode());
+        if (key >= 0)
+            inputQueue.offer(key, true);
     }
 
     @Override
-    public void keyReleased(KeyEvent event) {
-        if(event.getKeyCode() == KeyEvent.VK_RIGHT || event.getKeyCode() == KeyEvent.VK_LEFT)
-            notifyInput(ButtonAction.ACTION_COMPLETED);
+    public void mousePressed(MouseEvent e) {
+        offerPointer(e, true);
     }
 
-    private void notifyInput(ButtonAction action) {
-        if(action != ButtonAction.NO_ACTION)
-            engine.receiveInput(action);
+    @Override
+    public void keyReleased(KeyEvent event) {
+        int key = toKey(event.getKeyCode());
+        if (key >= 0)
+            inputQueue.offer(key, false);
     }
 
     @Override
@@ -738,7 +1631,9 @@ class Camera {
     public void mouseClicked(MouseEvent e) {}
 
     @Override
-    public void mouseReleased(MouseEvent e) {}
+    public void mouseReleased(MouseEvent e) {
+        offerPointer(e, false);
+    }
 
     @Override
     public void mouseEntered(MouseEvent e) {}
@@ -749,6 +1644,9 @@ class Camera {
 
 class MapCreator {
 
+    static final int PIXEL_MULTIPLIER = 48;
+    static final int CHUNK_COLUMNS = 32;
+
     private ImageLoader imageLoader;
 
     private BufferedImage backgroundImage;
@@ -779,1279 +1677,5053 @@ class MapCreator {
 
     }
 
+    // prefers the compiled .lvl next to the image, see LevelCompiler. One compiled from an older
+    // version of the image is ignored until the compiler runs again
     Map1 createMap(String mapPath, double timeLimit) {
-        BufferedImage mapImage = imageLoader.loadImage(mapPath);
+        if (mapPath.endsWith(".png")) {
+            byte[] sourceHash = LevelLayout.hashSource(mapPath);
+            LevelLayout compiled = LevelLayout.load(mapPath.substring(0, mapPath.length() - 4) + ".lvl", sourceHash);
+            if (compiled != null)
+                return createMap(compiled, mapPath, timeLimit);
+        }
+
+        BufferedImage mapImage = imageLoader.loadLevelImage(mapPath);
 
         if (mapImage == null) {
             System.out.println("Given path is invalid...");
             return null;
         }
 
+        return createMap(mapImage, mapPath, timeLimit);
+    }
+
+    // only parses the level, bricks and enemies are added chunk by chunk through Map1.updateChunks
+    Map1 createMap(BufferedImage mapImage, String mapPath, double timeLimit) {
+        return createMap(LevelLayout.parse(mapImage, CHUNK_COLUMNS), mapPath, timeLimit);
+    }
+
+    Map1 createMap(LevelLayout layout, String mapPath, double timeLimit) {
         Map1 createdMap = new Map1(timeLimit, backgroundImage);
         String[] paths = mapPath.split("/");
         createdMap.setPath(paths[paths.length-1]);
 
-        int pixelMultiplier = 48;
+        createdMap.setLayout(layout, this);
 
-        int mario = new Color(160, 160, 160).getRGB();
-        int ordinaryBrick = new Color(0, 0, 255).getRGB();
-        int surpriseBrick = new Color(255, 255, 0).getRGB();
-        int groundBrick = new Color(255, 0, 0).getRGB();
-        int pipe = new Color(0, 255, 0).getRGB();
-        int goomba = new Color(0, 255, 255).getRGB();
-        int koopa = new Color(255, 0, 255).getRGB();
-        int end = new Color(160, 0, 160).getRGB();
+        if (layout.hasMario()) {
+            Mario marioObject = new Mario(layout.getMarioColumn()*PIXEL_MULTIPLIER, layout.getMarioRow()*PIXEL_MULTIPLIER);
+            createdMap.setMario(marioObject);
+        }
+        if (layout.hasEnd()) {
+            EndFlag endPoint= new EndFlag(layout.getEndColumn()*PIXEL_MULTIPLIER+24, layout.getEndRow()*PIXEL_MULTIPLIER, endFlag);
+            createdMap.setEndPoint(endPoint);
+        }
+
+        System.out.println("Map is created..");
+        return createdMap;
+    }
 
-        for (int x = 0; x < mapImage.getWidth(); x++) {
-            for (int y = 0; y < mapImage.getHeight(); y++) {
+    // returns the added brick, or null when the tile is not a brick
+    Brick addBrick(Map1 createdMap, int tile, int xLocation, int yLocation) {
+        Brick brick = null;
 
-                int currentPixel = mapImage.getRGB(x, y);
-                int xLocation = x*pixelMultiplier;
-                int yLocation = y*pixelMultiplier;
+        if (tile == LevelLayout.ORDINARY_BRICK) {
+            brick = new OrdinaryBrick(xLocation, yLocation, this.ordinaryBrick);
+            createdMap.addBrick(brick);
+        }
+        else if (tile == LevelLayout.PIPE) {
+            brick = new Pipe(xLocation, yLocation, this.pipe);
+            createdMap.addGroundBrick(brick);
+        }
+        else if (tile == LevelLayout.GROUND_BRICK) {
+            brick = new GroundBrick(xLocation, yLocation, this.groundBrick);
+            createdMap.addGroundBrick(brick);
+        }
 
-                if (currentPixel == ordinaryBrick) {
-                    Brick brick = new OrdinaryBrick(xLocation, yLocation, this.ordinaryBrick);
-                    createdMap.addBrick(brick);
-                }
-                else if (currentPixel == surpriseBrick) {
-                }
-                else if (currentPixel == pipe) {
-                    Brick brick = new Pipe(xLocation, yLocation, this.pipe);
-                    createdMap.addGroundBrick(brick);
-                }
-                else if (currentPixel == groundBrick) {
-                    Brick brick = new GroundBrick(xLocation, yLocation, this.groundBrick);
-                    createdMap.addGroundBrick(brick);
-                }
-                else if (currentPixel == goomba) {
-                    Enemy enemy = new Goomba(xLocation, yLocation, this.goombaLeft);
-                    ((Goomba)enemy).setRightImage(goombaRight);
-                    createdMap.addEnemy(enemy);
-                }
-                else if (currentPixel == mario) {
-                    Mario marioObject = new Mario(xLocation, yLocation);
-                    createdMap.setMario(marioObject);
+        return brick;
+    }
+
+    // the enemy is in the map's store but not yet added to the map, returns null when the tile is not an enemy
+    Enemy createEnemy(Map1 createdMap, int tile, int xLocation, int yLocation) {
+        if (tile == LevelLayout.GOOMBA) {
+            Enemy enemy = new Goomba(createdMap.getEnemyStore(), xLocation, yLocation, this.goombaLeft);
+            ((Goomba)enemy).setRightImage(goombaRight);
+            return enemy;
+        }
+
+        return null;
+    }
+
+
+
+}
+
+// a level image reduced to its non-empty tiles, split into column chunks that are parsed in parallel
+class LevelLayout {
+
+    static final int EMPTY = 0, ORDINARY_BRICK = 1, GROUND_BRICK = 2, PIPE = 3, GOOMBA = 4, MARIO = 5, END = 6;
+
+    // compiled format, big endian: a header of ints (magic, version, width, height, chunk columns, spawn count,
+    // mario column and row, end column and row, -1 columns when missing) followed by the SHA-256 of the level
+    // image it was compiled from, then one terrain tile byte per cell in column order, then the spawn table
+    // sorted by column with an int column, a short row and a short tile each
+    private static final int MAGIC = 0x4D4C564C, VERSION = 2;
+    private static final int SOURCE_HASH = 40, HEADER_SIZE = 72, SPAWN_SIZE = 8;
+
+    private static final int MARIO_COLOR = new Color(160, 160, 160).getRGB();
+    private static final int ORDINARY_BRICK_COLOR = new Color(0, 0, 255).getRGB();
+    private static final int GROUND_BRICK_COLOR = new Color(255, 0, 0).getRGB();
+    private static final int PIPE_COLOR = new Color(0, 255, 0).getRGB();
+    private static final int GOOMBA_COLOR = new Color(0, 255, 255).getRGB();
+    private static final int END_COLOR = new Color(160, 0, 160).getRGB();
+
+    private final int width, height, chunkColumns;
+    // per chunk the tiles in column order, packed as column in chunk << 16 | row << 4 | tile
+    private final int[][] chunkTiles;
+    private int marioColumn = -1, marioRow, endColumn = -1, endRow;
+
+    // compiled levels decode a chunk from the mapped file when it is first asked for and drop it on release
+    private ByteBuffer compiled;
+    private int spawnCount;
+
+    private LevelLayout(int width, int height, int chunkColumns, ByteBuffer compiled) {
+        this.width = width;
+        this.height = height;
+        this.chunkColumns = chunkColumns;
+        this.chunkTiles = new int[(width + chunkColumns - 1) / chunkColumns][];
+        this.compiled = compiled;
+        this.spawnCount = compiled.getInt(20);
+        this.marioColumn = compiled.getInt(24);
+        this.marioRow = compiled.getInt(28);
+        this.endColumn = compiled.getInt(32);
+        this.endRow = compiled.getInt(36);
+    }
+
+    private LevelLayout(int width, int height, int chunkColumns, int[][] chunkTiles) {
+        this.width = width;
+        this.height = height;
+        this.chunkColumns = chunkColumns;
+        this.chunkTiles = chunkTiles;
+
+        // the last marker in column order wins, as it did when the image was read pixel by pixel
+        for (int chunk = 0; chunk < chunkTiles.length; chunk++) {
+            int[] tiles = chunkTiles[chunk];
+            for (int i = 0; i < tiles.length; i++) {
+                int tile = getTile(tiles[i]);
+                if (tile == MARIO) {
+                    marioColumn = getColumn(chunk, tiles[i]);
+                    marioRow = getRow(tiles[i]);
                 }
-                else if(currentPixel == end){
-                    EndFlag endPoint= new EndFlag(xLocation+24, yLocation, endFlag);
-                    createdMap.setEndPoint(endPoint);
+                else if (tile == END) {
+                    endColumn = getColumn(chunk, tiles[i]);
+                    endRow = getRow(tiles[i]);
                 }
             }
         }
-
-        System.out.println("Map is created..");
-        return createdMap;
     }
 
+    static LevelLayout parse(BufferedImage image, int chunkColumns) {
+        int width = image.getWidth(), height = image.getHeight();
+        if (height > 4095)
+            throw new IllegalArgumentException("Level is higher than 4095 tiles");
 
+        int chunkCount = (width + chunkColumns - 1) / chunkColumns;
+        int[][] chunkTiles = new int[chunkCount][];
+        IntStream.range(0, chunkCount).parallel().forEach(chunk ->
+                chunkTiles[chunk] = parseChunk(image, chunk * chunkColumns, Math.min(width, (chunk + 1) * chunkColumns)));
 
-}
+        return new LevelLayout(width, height, chunkColumns, chunkTiles);
+    }
 
-  class SoundManager {
+    private static int[] parseChunk(BufferedImage image, int fromX, int toX) {
+        int columns = toX - fromX, height = image.getHeight();
+        int[] pixels = readPixels(image, fromX, columns);
 
-    private Clip background;
-    private long clipTime = 0;
+        int[] tiles = new int[16];
+        int count = 0;
+        for (int x = 0; x < columns; x++) {
+            for (int y = 0; y < height; y++) {
+                int tile = toTile(pixels[y * columns + x]);
+                if (tile == EMPTY)
+                    continue;
 
-      SoundManager() {
-        background = getClip(loadAudio("background"));
+                if (count == tiles.length)
+                    tiles = Arrays.copyOf(tiles, count * 2);
+                tiles[count++] = x << 16 | y << 4 | tile;
+            }
+        }
+
+        return Arrays.copyOf(tiles, count);
     }
 
-    private AudioInputStream loadAudio(String url) {
-        try {
-            InputStream audioSrc = getClass().getResourceAsStream("/media/audio/" + url + ".wav");
-            InputStream bufferedIn = new BufferedInputStream(audioSrc);
-            return AudioSystem.getAudioInputStream(bufferedIn);
+    // reads the ARGB pixels of a column range row by row, straight from the DataBuffer for the layouts ImageIO
+    // gives PNGs and through one bulk getRGB call for anything else
+    private static int[] readPixels(BufferedImage image, int fromX, int columns) {
+        int height = image.getHeight();
+        int[] pixels = new int[columns * height];
 
-        } catch (Exception e) {
+        WritableRaster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel model = raster.getSampleModel();
+        int type = image.getType();
+        boolean plain = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0 && buffer.getNumBanks() == 1;
+
+        if (plain && buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel
+                && (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB)) {
+            int[] data = ((DataBufferInt) buffer).getData();
+            int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+            boolean opaque = type == BufferedImage.TYPE_INT_RGB;
+
+            for (int y = 0; y < height; y++) {
+                int offset = buffer.getOffset() + y * stride + fromX;
+                for (int x = 0; x < columns; x++) {
+                    int pixel = data[offset + x];
+                    pixels[y * columns + x] = opaque ? pixel | 0xff000000 : pixel;
+                }
+            }
+        }
+        else if (plain && buffer instanceof DataBufferByte && model instanceof PixelInterleavedSampleModel
+                && (type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)) {
+            byte[] data = ((DataBufferByte) buffer).getData();
+            PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+            int stride = interleaved.getScanlineStride(), pixelStride = interleaved.getPixelStride();
+            int[] bands = interleaved.getBandOffsets();
+            boolean hasAlpha = type == BufferedImage.TYPE_4BYTE_ABGR;
+
+            for (int y = 0; y < height; y++) {
+                int offset = buffer.getOffset() + y * stride + fromX * pixelStride;
+                for (int x = 0; x < columns; x++, offset += pixelStride) {
+                    int alpha = hasAlpha ? data[offset + bands[3]] & 0xff : 0xff;
+                    pixels[y * columns + x] = alpha << 24 | (data[offset + bands[0]] & 0xff) << 16
+                            | (data[offset + bands[1]] & 0xff) << 8 | (data[offset + bands[2]] & 0xff);
+                }
+            }
+        }
+        else {
+            image.getRGB(fromX, 0, columns, height, pixels, 0, columns);
+        }
+
+        return pixels;
+    }
+
+    private static int toTile(int pixel) {
+        if (pixel == ORDINARY_BRICK_COLOR)
+            return ORDINARY_BRICK;
+        if (pixel == GROUND_BRICK_COLOR)
+            return GROUND_BRICK;
+        if (pixel == PIPE_COLOR)
+            return PIPE;
+        if (pixel == GOOMBA_COLOR)
+            return GOOMBA;
+        if (pixel == MARIO_COLOR)
+            return MARIO;
+        if (pixel == END_COLOR)
+            return END;
+        return EMPTY;
+    }
+
+    // hash of a level image as stored in the compiled header, null when there is no such resource
+    static byte[] hashSource(String imagePath) {
+        try (InputStream in = LevelLayout.class.getResourceAsStream("/media" + imagePath)) {
+            return in == null ? null : hashSource(in.readAllBytes());
+        } catch (IOException e) {
             System.err.println(e.getMessage());
+            return null;
         }
+    }
 
-        return null;
+    static byte[] hashSource(byte[] image) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(image);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
-    private Clip getClip(AudioInputStream stream) {
+    // maps a compiled level from the classpath, resources inside a jar are read into memory instead.
+    // Returns null when there is none, it is not in the current format or it was compiled from an image
+    // other than the one sourceHash belongs to (a null sourceHash accepts any)
+    static LevelLayout load(String path, byte[] sourceHash) {
         try {
-            Clip clip = AudioSystem.getClip();
-            clip.open(stream);
-            return clip;
+            URL resource = LevelLayout.class.getResource("/media" + path);
+            if (resource == null)
+                return null;
+
+            ByteBuffer data;
+            if ("file".equals(resource.getProtocol())) {
+                try (FileChannel channel = FileChannel.open(Paths.get(resource.toURI()), StandardOpenOption.READ)) {
+                    data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+            else {
+                try (InputStream in = resource.openStream()) {
+                    data = ByteBuffer.wrap(in.readAllBytes());
+                }
+            }
+
+            if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION)
+                return null;
+            if (sourceHash != null && !data.slice(SOURCE_HASH, HEADER_SIZE - SOURCE_HASH).equals(ByteBuffer.wrap(sourceHash)))
+                return null;
+
+            int width = data.getInt(8), height = data.getInt(12), chunkColumns = data.getInt(16);
+            long size = HEADER_SIZE + (long)width * height + (long)data.getInt(20) * SPAWN_SIZE;
+            if (width <= 0 || height <= 0 || height > 4095 || chunkColumns <= 0 || size != data.limit())
+                return null;
+
+            return new LevelLayout(width, height, chunkColumns, data);
         } catch (Exception e) {
-            e.printStackTrace();
+            System.err.println(e.getMessage());
         }
 
         return null;
     }
 
-      void resumeBackground(){
-        background.setMicrosecondPosition(clipTime);
-        background.start();
-    }
+    void write(Path file, byte[] sourceHash) throws IOException {
+        int spawns = 0;
+        for (int chunk = 0; chunk < chunkTiles.length; chunk++) {
+            int[] tiles = getTiles(chunk);
+            for (int i = 0; i < tiles.length; i++) {
+                if (isSpawn(getTile(tiles[i])))
+                    spawns++;
+            }
+        }
 
-      void pauseBackground(){
-        clipTime = background.getMicrosecondPosition();
-        background.stop();
-    }
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + width * height + spawns * SPAWN_SIZE);
+        data.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(chunkColumns).putInt(spawns)
+                .putInt(marioColumn).putInt(marioRow).putInt(endColumn).putInt(endRow).put(sourceHash);
+
+        int spawnOffset = HEADER_SIZE + width * height;
+        for (int chunk = 0; chunk < chunkTiles.length; chunk++) {
+            int[] tiles = getTiles(chunk);
+            for (int i = 0; i < tiles.length; i++) {
+                int column = getColumn(chunk, tiles[i]), row = getRow(tiles[i]), tile = getTile(tiles[i]);
+                if (isTerrain(tile)) {
+                    data.put(HEADER_SIZE + column * height + row, (byte)tile);
+                }
+                else if (isSpawn(tile)) {
+                    data.putInt(spawnOffset, column).putShort(spawnOffset + 4, (short)row).putShort(spawnOffset + 6, (short)tile);
+                    spawnOffset += SPAWN_SIZE;
+                }
+            }
+        }
 
-      void restartBackground() {
-        clipTime = 0;
-        resumeBackground();
+        Files.write(file, data.array());
     }
 
-      void playJump() {
-        Clip clip = getClip(loadAudio("jump"));
-        clip.start();
+    // the tiles of a compiled chunk in the same order parseChunk gives them, terrain and spawns are only
+    // ever consumed separately so the two lists are not merged
+    private int[] decodeChunk(int chunk) {
+        int fromX = chunk * chunkColumns, toX = Math.min(width, fromX + chunkColumns);
+        int[] tiles = new int[16];
+        int count = 0;
 
-    }
+        for (int x = fromX; x < toX; x++) {
+            int offset = HEADER_SIZE + x * height;
+            for (int y = 0; y < height; y++) {
+                int tile = compiled.get(offset + y);
+                if (tile == EMPTY)
+                    continue;
 
-      void playCoin() {
-        Clip clip = getClip(loadAudio("coin"));
-        clip.start();
+                if (count == tiles.length)
+                    tiles = Arrays.copyOf(tiles, count * 2);
+                tiles[count++] = (x - fromX) << 16 | y << 4 | tile;
+            }
+        }
 
-    }
+        int spawnTable = HEADER_SIZE + width * height;
+        for (int spawn = firstSpawnFrom(fromX); spawn < spawnCount; spawn++) {
+            int offset = spawnTable + spawn * SPAWN_SIZE;
+            int column = compiled.getInt(offset);
+            if (column >= toX)
+                break;
 
-      void playFireball() {
-        Clip clip = getClip(loadAudio("fireball"));
-        clip.start();
+            if (count == tiles.length)
+                tiles = Arrays.copyOf(tiles, count * 2);
+            tiles[count++] = (column - fromX) << 16 | compiled.getShort(offset + 4) << 4 | compiled.getShort(offset + 6);
+        }
 
+        return Arrays.copyOf(tiles, count);
     }
 
-      void playGameOver() {
-        Clip clip = getClip(loadAudio("gameOver"));
-        clip.start();
-
+    private int firstSpawnFrom(int column) {
+        int spawnTable = HEADER_SIZE + width * height;
+        int low = 0, high = spawnCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compiled.getInt(spawnTable + middle * SPAWN_SIZE) < column)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
     }
 
-      void playStomp() {
-        Clip clip = getClip(loadAudio("stomp"));
-        clip.start();
-
+    static boolean isTerrain(int tile) {
+        return tile == ORDINARY_BRICK || tile == GROUND_BRICK || tile == PIPE;
     }
 
-      void playOneUp() {
-        Clip clip = getClip(loadAudio("oneUp"));
-        clip.start();
-
+    private static boolean isSpawn(int tile) {
+        return tile == GOOMBA;
     }
 
-      void playSuperMushroom() {
+    int[] getTiles(int chunk) {
+        if (chunkTiles[chunk] == null && compiled != null)
+            chunkTiles[chunk] = decodeChunk(chunk);
+        return chunkTiles[chunk];
+    }
 
-        Clip clip = getClip(loadAudio("superMushroom"));
-        clip.start();
+    // compiled chunks can be decoded again, parsed ones are kept
+    void release(int chunk) {
+        if (compiled != null)
+            chunkTiles[chunk] = null;
+    }
 
+    boolean isCompiled() {
+        return compiled != null;
     }
 
-      void playMarioDies() {
+    int getColumn(int chunk, int packedTile) {
+        return chunk * chunkColumns + (packedTile >>> 16);
+    }
 
-        Clip clip = getClip(loadAudio("marioDies"));
-        clip.start();
+    static int getRow(int packedTile) {
+        return (packedTile >> 4) & 0xfff;
+    }
 
+    static int getTile(int packedTile) {
+        return packedTile & 0xf;
     }
 
-      void playFireFlower() {
+    int getChunkCount() {
+        return chunkTiles.length;
+    }
 
+    int getChunkColumns() {
+        return chunkColumns;
     }
-}
-  abstract class Brick extends GameObject{
 
-    private boolean breakable;
+    int getWidth() {
+        return width;
+    }
 
-    private boolean empty;
+    int getHeight() {
+        return height;
+    }
 
-      Brick(double x, double y, BufferedImage style){
-        super(x, y, style);
-        setDimension(48, 48);
+    boolean hasMario() {
+        return marioColumn >= 0;
     }
 
-      boolean isBreakable() {
-        return breakable;
+    int getMarioColumn() {
+        return marioColumn;
     }
 
-      void setBreakable(boolean breakable) {
-        this.breakable = breakable;
+    int getMarioRow() {
+        return marioRow;
     }
 
-      boolean isEmpty() {
-        return empty;
+    boolean hasEnd() {
+        return endColumn >= 0;
     }
 
-      void setEmpty(boolean empty) {
-        this.empty = empty;
+    int getEndColumn() {
+        return endColumn;
     }
 
+    int getEndRow() {
+        return endRow;
+    }
 }
-  class GroundBrick extends Brick{
 
-      GroundBrick(double x, double y, BufferedImage style){
-        super(x, y, style);
-        setBreakable(false);
-        setEmpty(true);
+  class SoundManager implements GameAudio {
+
+    private static final int CLIPS_PER_EFFECT = 3;
+
+    private Clip background;
+    private long clipTime = 0;
+    private AudioMixer mixer;
+    private SoundEffect jump, coin, fireball, gameOver, stomp, oneUp, superMushroom, marioDies;
+
+      // -Dmario.audio.mixer=true mixes everything on one line, -Dmario.audio.voices and -Dmario.audio.bufferFrames tune it
+      SoundManager() {
+        this(Boolean.getBoolean("mario.audio.mixer"), Integer.getInteger("mario.audio.voices", 8),
+                Integer.getInteger("mario.audio.bufferFrames", 512));
     }
 
-}
-  class OrdinaryBrick extends Brick {
+      SoundManager(boolean useMixer, int maxVoices, int bufferFrames) {
+        if (useMixer) {
+            mixer = AudioMixer.open(bufferFrames, maxVoices);
+        }
 
-    private Animation animation;
-    private boolean breaking;
-    private int frames;
+        if (mixer != null)
+            mixer.setMusic(loadMixerSamples("background"));
+        else
+            background = getClip(loadAudio("background"));
 
-      OrdinaryBrick(double x, double y, BufferedImage style){
-        super(x, y, style);
-        setBreakable(true);
-        setEmpty(true);
+        jump = loadEffect("jump");
+        coin = loadEffect("coin");
+        fireball = loadEffect("fireball");
+        gameOver = loadEffect("gameOver");
+        stomp = loadEffect("stomp");
+        oneUp = loadEffect("oneUp");
+        superMushroom = loadEffect("superMushroom");
+        marioDies = loadEffect("marioDies");
 
-        setAnimation();
-        breaking = false;
-        frames = animation.getLeftFrames().length;
+        if (mixer != null)
+            mixer.start();
     }
 
-    private void setAnimation(){
-        ImageLoader imageLoader = new ImageLoader();
-        BufferedImage[] leftFrames = imageLoader.getBrickFrames();
+    private AudioInputStream loadAudio(String url) {
+        try {
+            InputStream audioSrc = getClass().getResourceAsStream("/media/audio/" + url + ".wav");
+            if (audioSrc == null)
+                return null;
+            InputStream bufferedIn = new BufferedInputStream(audioSrc);
+            return AudioSystem.getAudioInputStream(bufferedIn);
 
-        animation = new Animation(leftFrames, leftFrames);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+
+        return null;
     }
 
+    // converts the sound to the mixer's format, returns null when it cannot be loaded
+    private short[] loadMixerSamples(String url) {
+        try (AudioInputStream stream = loadAudio(url)) {
+            if (stream == null)
+                return null;
 
+            byte[] data = AudioSystem.getAudioInputStream(AudioMixer.FORMAT, stream).readAllBytes();
+            short[] samples = new short[data.length / 2];
+            for (int i = 0; i < samples.length; i++) {
+                samples[i] = (short)((data[2*i] & 0xff) | (data[2*i + 1] << 8));
+            }
+            return samples;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
 
-      int getFrames(){
-        return frames;
+        return null;
     }
 
-      void animate(){
-        if(breaking){
-            setStyle(animation.animate(3, true));
-            frames--;
+    // decodes the effect to PCM once, every later play only rewinds one of the pooled clips
+    private SoundEffect loadEffect(String url) {
+        if (mixer != null) {
+            short[] samples = loadMixerSamples(url);
+            if (samples == null)
+                return new SoundEffect(null, null, 0);
+            return new SoundEffect(mixer, mixer.addSound(samples));
+        }
+
+        try (AudioInputStream stream = loadAudio(url)) {
+            if (stream == null)
+                return new SoundEffect(null, null, 0);
+
+            AudioInputStream pcmStream = stream;
+            AudioFormat format = stream.getFormat();
+            if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED && format.getEncoding() != AudioFormat.Encoding.PCM_UNSIGNED) {
+                AudioFormat pcmFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                        format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+                pcmStream = AudioSystem.getAudioInputStream(pcmFormat, stream);
+            }
+
+            byte[] data = pcmStream.readAllBytes();
+            return new SoundEffect(pcmStream.getFormat(), data, CLIPS_PER_EFFECT);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+
+        return new SoundEffect(null, null, 0);
+    }
+
+    private Clip getClip(AudioInputStream stream) {
+        if (stream == null)
+            return null;
+
+        try {
+            Clip clip = AudioSystem.getClip();
+            clip.open(stream);
+            return clip;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    @Override
+    public void resumeBackground(){
+        if (mixer != null) {
+            mixer.resumeMusic();
+            return;
+        }
+        if (background == null)
+            return;
+        background.setMicrosecondPosition(clipTime);
+        background.start();
+    }
+
+    @Override
+    public void pauseBackground(){
+        if (mixer != null) {
+            mixer.pauseMusic();
+            return;
+        }
+        if (background == null)
+            return;
+        clipTime = background.getMicrosecondPosition();
+        background.stop();
+    }
+
+    @Override
+    public void restartBackground() {
+        clipTime = 0;
+        if (mixer != null)
+            mixer.restartMusic();
+        resumeBackground();
+    }
+
+    @Override
+    public void playJump() {
+        jump.play();
+    }
+
+    @Override
+    public void playCoin() {
+        coin.play();
+    }
+
+    @Override
+    public void playFireball() {
+        fireball.play();
+    }
+
+    @Override
+    public void playGameOver() {
+        gameOver.play();
+    }
+
+    @Override
+    public void playStomp() {
+        stomp.play();
+    }
+
+    @Override
+    public void playOneUp() {
+        oneUp.play();
+    }
+
+    @Override
+    public void playSuperMushroom() {
+        superMushroom.play();
+    }
+
+    @Override
+    public void playMarioDies() {
+        marioDies.play();
+    }
+
+    @Override
+    public void playFireFlower() {
+
+    }
+
+      void close() {
+        jump.close();
+        coin.close();
+        fireball.close();
+        gameOver.close();
+        stomp.close();
+        oneUp.close();
+        superMushroom.close();
+        marioDies.close();
+        if (background != null)
+            background.close();
+        if (mixer != null)
+            mixer.close();
+    }
+
+      AudioMixer getMixer() {
+        return mixer;
+    }
+}
+
+  class SoundEffect {
+
+    private final Clip[] clips;
+    private int next = 0;
+    private AudioMixer mixer;
+    private int soundId;
+
+      SoundEffect(AudioMixer mixer, int soundId) {
+        this.clips = new Clip[0];
+        this.mixer = mixer;
+        this.soundId = soundId;
+    }
+
+      SoundEffect(AudioFormat format, byte[] data, int poolSize) {
+        ArrayList<Clip> opened = new ArrayList<>();
+
+        for (int i = 0; i < poolSize && data != null; i++) {
+            try {
+                Clip clip = AudioSystem.getClip();
+                clip.open(format, data, 0, data.length);
+                opened.add(clip);
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                break;
+            }
+        }
+
+        clips = opened.toArray(new Clip[0]);
+    }
+
+      // takes the first idle clip, or retriggers the oldest one when all of them are playing
+      void play() {
+        if (mixer != null) {
+            mixer.play(soundId);
+            return;
+        }
+        if (clips.length == 0)
+            return;
+
+        Clip clip = clips[next];
+        for (int i = 0; i < clips.length; i++) {
+            Clip candidate = clips[(next + i) % clips.length];
+            if (!candidate.isRunning()) {
+                clip = candidate;
+                next = (next + i) % clips.length;
+                break;
+            }
+        }
+        next = (next + 1) % clips.length;
+
+        clip.stop();
+        clip.setFramePosition(0);
+        clip.start();
+    }
+
+      int getPoolSize() {
+        return clips.length;
+    }
+
+      void close() {
+        for (Clip clip : clips) {
+            clip.close();
         }
     }
 }
+  class AudioMixer implements Runnable {
+
+    static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    private static final int QUEUE_SIZE = 64;
+
+    private final SourceDataLine line;
+    private final int bufferFrames;
+    private final int[] mixBuffer;
+    private final byte[] outputBuffer;
+    private final ArrayList<short[]> sounds = new ArrayList<>();
+
+    // voices are only touched by the audio thread
+    private final short[][] voiceSamples;
+    private final int[] voicePositions;
+    private final long[] voiceStarts;
+
+    private volatile short[] music;
+    private volatile boolean musicPlaying, musicRestart;
+    private int musicPosition;
+
+    // bounded multi-producer queue of play requests, a full queue drops the request instead of blocking
+    private final AtomicLong queueHead = new AtomicLong();
+    private final AtomicLongArray queueSequences = new AtomicLongArray(QUEUE_SIZE);
+    private final int[] queuedSounds = new int[QUEUE_SIZE];
+    private final long[] queuedTimes = new long[QUEUE_SIZE];
+    private long queueTail = 0;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long playedCount, stolenCount, totalLatency, maxLatency;
+    private volatile boolean running;
+    private Thread thread;
 
-  class Pipe extends Brick{
+    private AudioMixer(SourceDataLine line, int bufferFrames, int maxVoices) {
+        this.line = line;
+        this.bufferFrames = bufferFrames;
+        this.mixBuffer = new int[bufferFrames * FORMAT.getChannels()];
+        this.outputBuffer = new byte[bufferFrames * FORMAT.getFrameSize()];
+        this.voiceSamples = new short[Math.max(1, maxVoices)][];
+        this.voicePositions = new int[voiceSamples.length];
+        this.voiceStarts = new long[voiceSamples.length];
+
+        for (int i = 0; i < QUEUE_SIZE; i++) {
+            queueSequences.set(i, i);
+        }
+    }
 
-      Pipe(double x, double y, BufferedImage style){
+    // returns null when no line in the mixer's format is available
+    static AudioMixer open(int bufferFrames, int maxVoices) {
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+            line.open(FORMAT, bufferFrames * FORMAT.getFrameSize() * 2);
+            return new AudioMixer(line, bufferFrames, maxVoices);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+
+        return null;
+    }
+
+    // sounds have to be added before start(), samples are interleaved in FORMAT
+    int addSound(short[] samples) {
+        sounds.add(samples);
+        return sounds.size() - 1;
+    }
+
+    void start() {
+        if (running)
+            return;
+
+        running = true;
+        thread = new Thread(this, "audio-mixer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    void close() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        line.close();
+    }
+
+    boolean play(int soundId) {
+        long position = queueHead.get();
+        while (true) {
+            int index = (int)(position % QUEUE_SIZE);
+            long difference = queueSequences.get(index) - position;
+
+            if (difference == 0) {
+                if (queueHead.compareAndSet(position, position + 1))
+                    break;
+                position = queueHead.get();
+            }
+            else if (difference < 0) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+            else {
+                position = queueHead.get();
+            }
+        }
+
+        int index = (int)(position % QUEUE_SIZE);
+        queuedSounds[index] = soundId;
+        queuedTimes[index] = System.nanoTime();
+        queueSequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    void setMusic(short[] samples) {
+        music = samples;
+    }
+
+    void pauseMusic() {
+        musicPlaying = false;
+    }
+
+    void resumeMusic() {
+        musicPlaying = true;
+    }
+
+    void restartMusic() {
+        musicRestart = true;
+    }
+
+    @Override
+    public void run() {
+        line.start();
+
+        while (running) {
+            startQueuedVoices();
+            mix();
+            line.write(outputBuffer, 0, outputBuffer.length);
+        }
+
+        line.stop();
+        line.flush();
+    }
+
+    private void startQueuedVoices() {
+        long outputDelay = -1;
+
+        while (true) {
+            int index = (int)(queueTail % QUEUE_SIZE);
+            if (queueSequences.get(index) != queueTail + 1)
+                return;
+
+            int soundId = queuedSounds[index];
+            long triggerTime = queuedTimes[index];
+            queueSequences.lazySet(index, queueTail + QUEUE_SIZE);
+            queueTail++;
+
+            if (soundId < 0 || soundId >= sounds.size())
+                continue;
+
+            // the new voice is heard once the frames already queued on the line have played
+            if (outputDelay < 0) {
+                int queuedFrames = (line.getBufferSize() - line.available()) / FORMAT.getFrameSize();
+                outputDelay = (long)(queuedFrames * 1e9 / FORMAT.getFrameRate());
+            }
+            long latency = System.nanoTime() - triggerTime + outputDelay;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            playedCount++;
+
+            startVoice(sounds.get(soundId));
+        }
+    }
+
+    private void startVoice(short[] samples) {
+        int chosen = -1;
+        for (int i = 0; i < voiceSamples.length; i++) {
+            if (voiceSamples[i] == null) {
+                chosen = i;
+                break;
+            }
+            if (chosen < 0 || voiceStarts[i] < voiceStarts[chosen])
+                chosen = i;
+        }
+
+        if (voiceSamples[chosen] != null)
+            stolenCount++;
+
+        voiceSamples[chosen] = samples;
+        voicePositions[chosen] = 0;
+        voiceStarts[chosen] = System.nanoTime();
+    }
+
+    private void mix() {
+        Arrays.fill(mixBuffer, 0);
+
+        short[] track = music;
+        if (musicRestart) {
+            musicPosition = 0;
+            musicRestart = false;
+        }
+        if (track != null && track.length > 0 && musicPlaying) {
+            for (int i = 0; i < mixBuffer.length; i++) {
+                if (musicPosition >= track.length)
+                    musicPosition = 0;
+                mixBuffer[i] += track[musicPosition++];
+            }
+        }
+
+        for (int voice = 0; voice < voiceSamples.length; voice++) {
+            short[] samples = voiceSamples[voice];
+            if (samples == null)
+                continue;
+
+            int position = voicePositions[voice];
+            int count = Math.min(mixBuffer.length, samples.length - position);
+            for (int i = 0; i < count; i++) {
+                mixBuffer[i] += samples[position + i];
+            }
+
+            voicePositions[voice] = position + count;
+            if (voicePositions[voice] >= samples.length)
+                voiceSamples[voice] = null;
+        }
+
+        for (int i = 0; i < mixBuffer.length; i++) {
+            int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixBuffer[i]));
+            outputBuffer[2*i] = (byte)sample;
+            outputBuffer[2*i + 1] = (byte)(sample >> 8);
+        }
+    }
+
+    long getPlayedCount() {
+        return playedCount;
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getStolenCount() {
+        return stolenCount;
+    }
+
+    long getAverageLatencyNanos() {
+        long played = playedCount;
+        return played == 0 ? 0 : totalLatency / played;
+    }
+
+    long getMaxLatencyNanos() {
+        return maxLatency;
+    }
+
+    int getBufferFrames() {
+        return bufferFrames;
+    }
+}
+
+  interface GameAudio {
+
+    void resumeBackground();
+
+    void pauseBackground();
+
+    void restartBackground();
+
+    void playJump();
+
+    void playCoin();
+
+    void playFireball();
+
+    void playGameOver();
+
+    void playStomp();
+
+    void playOneUp();
+
+    void playSuperMushroom();
+
+    void playMarioDies();
+
+    void playFireFlower();
+}
+
+  class SilentAudio implements GameAudio {
+
+    @Override
+    public void resumeBackground() {}
+
+    @Override
+    public void pauseBackground() {}
+
+    @Override
+    public void restartBackground() {}
+
+    @Override
+    public void playJump() {}
+
+    @Override
+    public void playCoin() {}
+
+    @Override
+    public void playFireball() {}
+
+    @Override
+    public void playGameOver() {}
+
+    @Override
+    public void playStomp() {}
+
+    @Override
+    public void playOneUp() {}
+
+    @Override
+    public void playSuperMushroom() {}
+
+    @Override
+    public void playMarioDies() {}
+
+    @Override
+    public void playFireFlower() {}
+}
+  abstract class Brick extends GameObject{
+
+    private boolean breakable;
+
+    private boolean empty;
+
+    private boolean staticTerrain;
+
+      Brick(double x, double y, BufferedImage style){
         super(x, y, style);
-        setBreakable(false);
-        setEmpty(true);
-        setDimension(96, 96);
+        setDimension(48, 48);
+    }
+
+      boolean isBreakable() {
+        return breakable;
+    }
+
+      void setBreakable(boolean breakable) {
+        this.breakable = breakable;
+    }
+
+      boolean isEmpty() {
+        return empty;
+    }
+
+      void setEmpty(boolean empty) {
+        this.empty = empty;
+    }
+
+      // static terrain is drawn from the map's pre-rendered layer instead of one by one
+      boolean isStaticTerrain() {
+        return staticTerrain;
+    }
+
+      void setStaticTerrain(boolean staticTerrain) {
+        this.staticTerrain = staticTerrain;
+    }
+
+}
+  class GroundBrick extends Brick{
+
+      GroundBrick(double x, double y, BufferedImage style){
+        super(x, y, style);
+        setBreakable(false);
+        setEmpty(true);
+    }
+
+}
+  class OrdinaryBrick extends Brick {
+
+    private Animation animation;
+    private boolean breaking;
+    private int frames;
+
+      OrdinaryBrick(double x, double y, BufferedImage style){
+        super(x, y, style);
+        setBreakable(true);
+        setEmpty(true);
+
+        setAnimation();
+        breaking = false;
+        frames = animation.getLeftFrames().length;
+    }
+
+    private void setAnimation(){
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        BufferedImage[] leftFrames = imageLoader.getBrickFrames();
+
+        animation = new Animation(leftFrames, leftFrames);
+    }
+
+
+
+      int getFrames(){
+        return frames;
+    }
+
+      void animate(){
+        if(breaking){
+            setStyle(animation.animate(3, true));
+            frames--;
+        }
+    }
+}
+
+  class Pipe extends Brick{
+
+      Pipe(double x, double y, BufferedImage style){
+        super(x, y, style);
+        setBreakable(false);
+        setEmpty(true);
+        setDimension(96, 96);
+    }
+}
+
+
+
+
+  abstract class Enemy extends GameObject{
+
+    // position, velocity, size and physics flags live in the store, this object is only a view over its slot
+    private EntityStore store;
+    private int handle = -1;
+    // chunk << 16 | index of the tile it was spawned from in the chunk, see Map1.readState
+    private int spawnId = -1;
+
+      Enemy(EntityStore store, double x, double y, BufferedImage style) {
+        super(x, y, style);
+        Dimension dimension = getDimension();
+        int width = dimension != null ? dimension.width : 0;
+        int height = dimension != null ? dimension.height : 0;
+
+        this.handle = store.add(x, y, width, height, getGravityAcc());
+        this.store = store;
+        setFalling(false);
+        setJumping(false);
+    }
+
+    @Override
+      void updateLocation() {
+        store.updateLocation(handle);
+    }
+
+      // copies the state back into the object and releases the slot, used when the enemy leaves the map
+      void detach() {
+        if(store == null)
+            return;
+
+        EntityStore owner = store;
+        store = null;
+        super.setLocation(owner.getPreviousX(handle), owner.getPreviousY(handle));
+        super.savePreviousLocation();
+        super.setLocation(owner.getX(handle), owner.getY(handle));
+        super.setVelX(owner.getVelX(handle));
+        super.setVelY(owner.getVelY(handle));
+        super.setGravityAcc(owner.getGravityAcc(handle));
+        super.setFalling(owner.isFalling(handle));
+        super.setJumping(owner.isJumping(handle));
+        owner.remove(handle);
+        handle = -1;
+    }
+
+      int getSpawnId() {
+        return spawnId;
+    }
+
+      void setSpawnId(int spawnId) {
+        this.spawnId = spawnId;
+    }
+
+      // points the enemy at a slot that already holds its state, see Map1.reset
+      void attach(EntityStore store, int handle) {
+        this.store = store;
+        this.handle = handle;
+    }
+
+      EntityStore getStore() {
+        return store;
+    }
+
+      int getHandle() {
+        return handle;
+    }
+
+    @Override
+      void savePreviousLocation() {
+        if(store == null) super.savePreviousLocation(); else store.savePreviousLocation(handle);
+    }
+
+    @Override
+      double getPreviousX() {
+        return store == null ? super.getPreviousX() : store.getPreviousX(handle);
+    }
+
+    @Override
+      double getPreviousY() {
+        return store == null ? super.getPreviousY() : store.getPreviousY(handle);
+    }
+
+    @Override
+      double getX() {
+        return store == null ? super.getX() : store.getX(handle);
+    }
+
+    @Override
+      void setX(double x) {
+        if(store == null) super.setX(x); else store.setX(handle, x);
+    }
+
+    @Override
+      double getY() {
+        return store == null ? super.getY() : store.getY(handle);
+    }
+
+    @Override
+      void setY(double y) {
+        if(store == null) super.setY(y); else store.setY(handle, y);
+    }
+
+    @Override
+      double getVelX() {
+        return store == null ? super.getVelX() : store.getVelX(handle);
+    }
+
+    @Override
+      void setVelX(double velX) {
+        if(store == null) super.setVelX(velX); else store.setVelX(handle, velX);
+    }
+
+    @Override
+      double getVelY() {
+        return store == null ? super.getVelY() : store.getVelY(handle);
+    }
+
+    @Override
+      void setVelY(double velY) {
+        if(store == null) super.setVelY(velY); else store.setVelY(handle, velY);
+    }
+
+    @Override
+      double getGravityAcc() {
+        return store == null ? super.getGravityAcc() : store.getGravityAcc(handle);
+    }
+
+    @Override
+      void setGravityAcc(double gravityAcc) {
+        if(store == null) super.setGravityAcc(gravityAcc); else store.setGravityAcc(handle, gravityAcc);
+    }
+
+    @Override
+      boolean isFalling() {
+        return store == null ? super.isFalling() : store.isFalling(handle);
+    }
+
+    @Override
+      void setFalling(boolean falling) {
+        if(store == null) super.setFalling(falling); else store.setFalling(handle, falling);
+    }
+
+    @Override
+      boolean isJumping() {
+        return store == null ? super.isJumping() : store.isJumping(handle);
+    }
+
+    @Override
+      void setJumping(boolean jumping) {
+        if(store == null) super.setJumping(jumping); else store.setJumping(handle, jumping);
+    }
+
+    @Override
+      void setDimension(Dimension dimension) {
+        super.setDimension(dimension);
+        if(store != null) store.setSize(handle, dimension.width, dimension.height);
+    }
+
+    @Override
+      void setDimension(int width, int height) {
+        super.setDimension(width, height);
+        if(store != null) store.setSize(handle, width, height);
+    }
+}
+
+
+
+  class Goomba extends Enemy{
+
+    private BufferedImage rightImage;
+
+      Goomba(EntityStore store, double x, double y, BufferedImage style) {
+        super(store, x, y, style);
+        setVelX(3);
+    }
+
+    @Override
+      void addTo(RenderSnapshot snapshot, double interpolation){
+        if(getVelX() > 0){
+            snapshot.add(rightImage, (int)getInterpolatedX(interpolation), (int)getInterpolatedY(interpolation));
+        }
+        else
+            super.addTo(snapshot, interpolation);
+    }
+
+      void setRightImage(BufferedImage rightImage) {
+        this.rightImage = rightImage;
+    }
+}
+
+  class Mario extends GameObject{
+
+    private int remainingLives;
+    private int coins;
+    private int points;
+    private double invincibilityTimer;
+    private MarioForm marioForm;
+    private boolean toRight = true;
+
+      Mario(double x, double y){
+        super(x, y, null);
+        setDimension(48,48);
+
+        remainingLives = 3;
+        points = 0;
+        coins = 0;
+        invincibilityTimer = 0;
+
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        BufferedImage[] leftFrames = imageLoader.getLeftFrames(MarioForm.SMALL);
+        BufferedImage[] rightFrames = imageLoader.getRightFrames(MarioForm.SMALL);
+
+        Animation animation = new Animation(leftFrames, rightFrames);
+        marioForm = new MarioForm(animation, false, false);
+        setStyle(marioForm.getCurrentStyle(toRight, false, false));
+    }
+
+    // the animation advances here, on the game thread, once per published frame
+    @Override
+      void addTo(RenderSnapshot snapshot, double interpolation){
+        boolean movingInX = (getVelX() != 0);
+        boolean movingInY = (getVelY() != 0);
+
+        setStyle(marioForm.getCurrentStyle(toRight, movingInX, movingInY));
+
+        super.addTo(snapshot, interpolation);
+    }
+
+      void jump(GameEngine engine) {
+        if(!isJumping() && !isFalling()){
+            setJumping(true);
+            setVelY(10);
+            setVelY(-2);
+            setVelY(10);
+            engine.playJump();
+        }
+    }
+
+      void move(boolean toRight, Camera camera) {
+        if(toRight){
+            setVelX(5);
+        }
+        else if(camera.getX() < getX()){
+            setVelX(-5);
+        }
+
+        this.toRight = toRight;
+    }
+
+      boolean onTouchEnemy(GameEngine engine){
+
+        if(!marioForm.isSuper() && !marioForm.isFire()){
+            remainingLives--;
+            engine.playMarioDies();
+            return true;
+        }
+        else{
+            engine.shakeCamera();
+            marioForm = marioForm.onTouchEnemy(engine.getImageLoader());
+            setDimension(48, 48);
+            return false;
+        }
+    }
+
+      void acquireCoin() {
+        coins++;
+    }
+
+      void acquirePoints(int point){
+        points = points + point;
+    }
+
+      int getRemainingLives() {
+        return remainingLives;
+    }
+
+      void setRemainingLives(int remainingLives) {
+        this.remainingLives = remainingLives;
+    }
+
+      int getPoints() {
+        return points;
+    }
+
+      int getCoins() {
+        return coins;
+    }
+
+      MarioForm getMarioForm() {
+        return marioForm;
+    }
+
+      void setMarioForm(MarioForm marioForm) {
+        this.marioForm = marioForm;
+    }
+
+      boolean isSuper() {
+        return marioForm.isSuper();
+    }
+
+      boolean getToRight() {
+        return toRight;
+    }
+
+    @Override
+      void writeState(ByteBuffer out) {
+        super.writeState(out);
+        out.putInt(remainingLives).putInt(coins).putInt(points).putDouble(invincibilityTimer);
+        out.putInt(getDimension().width).putInt(getDimension().height);
+        out.put((byte)((toRight ? 1 : 0) | (marioForm.isSuper() ? 2 : 0) | (marioForm.isFire() ? 4 : 0)));
+    }
+
+    @Override
+      void readState(ByteBuffer in) {
+        super.readState(in);
+        remainingLives = in.getInt();
+        coins = in.getInt();
+        points = in.getInt();
+        invincibilityTimer = in.getDouble();
+        setDimension(in.getInt(), in.getInt());
+
+        byte flags = in.get();
+        toRight = (flags & 1) != 0;
+        boolean isSuper = (flags & 2) != 0, isFire = (flags & 4) != 0;
+        if (isSuper != marioForm.isSuper() || isFire != marioForm.isFire()) {
+            int form = isFire ? MarioForm.FIRE : isSuper ? MarioForm.SUPER : MarioForm.SMALL;
+            ImageLoader imageLoader = ImageLoader.getInstance();
+            Animation animation = new Animation(imageLoader.getLeftFrames(form), imageLoader.getRightFrames(form));
+            marioForm = new MarioForm(animation, isSuper, isFire);
+        }
+    }
+
+      void resetLocation() {
+        setVelX(0);
+        setVelY(0);
+        setX(50);
+        setJumping(false);
+        setFalling(true);
+        savePreviousLocation();
+    }
+}
+  class MarioForm {
+
+      static final int SMALL = 0, SUPER = 1, FIRE = 2;
+
+    private Animation animation;
+    private boolean isSuper, isFire; //note: fire form has priority over super form
+    private BufferedImage fireballStyle;
+
+      MarioForm(Animation animation, boolean isSuper, boolean isFire){
+        this.animation = animation;
+        this.isSuper = isSuper;
+        this.isFire = isFire;
+
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        BufferedImage fireball = imageLoader.loadImage("/sprite.png");
+        fireballStyle = imageLoader.getSubImage(fireball, 3, 4, 24, 24);
+    }
+
+      BufferedImage getCurrentStyle(boolean toRight, boolean movingInX, boolean movingInY){
+
+        BufferedImage style;
+
+        if(movingInY && toRight){
+            style = animation.getRightFrames()[0];
+        }
+        else if(movingInY){
+            style = animation.getLeftFrames()[0];
+        }
+        else if(movingInX){
+            style = animation.animate(5, toRight);
+        }
+        else {
+            if(toRight){
+                style = animation.getRightFrames()[1];
+            }
+            else
+                style = animation.getLeftFrames()[1];
+        }
+
+        return style;
+    }
+
+      MarioForm onTouchEnemy(ImageLoader imageLoader) {
+        BufferedImage[] leftFrames = imageLoader.getLeftFrames(0);
+        BufferedImage[] rightFrames= imageLoader.getRightFrames(0);
+
+        Animation newAnimation = new Animation(leftFrames, rightFrames);
+
+        return new MarioForm(newAnimation, false, false);
+    }
+
+      boolean isSuper() {
+        return isSuper;
+    }
+
+      void setSuper(boolean aSuper) {
+        isSuper = aSuper;
+    }
+
+      boolean isFire() {
+        return isFire;
+    }
+}
+  class EndFlag extends GameObject{
+
+    private boolean touched = false;
+
+      EndFlag(double x, double y, BufferedImage style) {
+        super(x, y, style);
+    }
+
+    @Override
+      void updateLocation() {
+        if(touched){
+            if(getY() + getDimension().getHeight() >= 576){
+                setFalling(false);
+                setVelY(0);
+                setY(576 - getDimension().getHeight());
+            }
+            super.updateLocation();
+        }
+    }
+
+      boolean isTouched() {
+        return touched;
+    }
+
+    @Override
+      void writeState(ByteBuffer out) {
+        super.writeState(out);
+        out.put((byte)(touched ? 1 : 0));
+    }
+
+    @Override
+      void readState(ByteBuffer in) {
+        super.readState(in);
+        touched = in.get() != 0;
+    }
+
+      void setTouched(boolean touched) {
+        this.touched = touched;
+    }
+}
+
+  abstract class GameObject {
+
+    private double x, y;
+
+    private double previousX, previousY;
+
+    private double velX, velY;
+
+    private Dimension dimension;
+
+    private BufferedImage style;
+
+    private double gravityAcc;
+
+    private boolean falling, jumping;
+
+      GameObject(double x, double y, BufferedImage style){
+        setLocation(x, y);
+        previousX = x;
+        previousY = y;
+        setStyle(style);
+
+        if(style != null){
+            setDimension(style.getWidth(), style.getHeight());
+        }
+
+        setVelX(0);
+        setVelY(0);
+        setGravityAcc(0.38);
+        jumping = false;
+        falling = true;
+    }
+
+      void draw(Graphics g) {
+        draw(g, 1);
+    }
+
+      // queues the sprite between the previous and the current tick's location, see savePreviousLocation
+      void addTo(RenderSnapshot snapshot, double interpolation) {
+        BufferedImage style = getStyle();
+
+        if(style != null){
+            snapshot.add(style, (int)getInterpolatedX(interpolation), (int)getInterpolatedY(interpolation));
+        }
+    }
+
+      void draw(Graphics g, double interpolation) {
+        BufferedImage style = getStyle();
+
+        if(style != null){
+            g.drawImage(style, (int)getInterpolatedX(interpolation), (int)getInterpolatedY(interpolation), null);
+        }
+
+        //for debugging
+        /*Graphics2D g2 = (Graphics2D)g;
+        g2.setColor(Color.WHITE);
+
+        g2.draw(getTopBounds());
+        g2.draw(getBottomBounds());
+        g2.draw(getRightBounds());
+        g2.draw(getLeftBounds());*/
+    }
+
+      void updateLocation() {
+        if(jumping && velY <= 0){
+            jumping = false;
+            falling = true;
+        }
+        else if(jumping){
+            velY = velY - gravityAcc;
+            y = y - velY;
+        }
+
+        if(falling){
+            y = y + velY;
+            velY = velY + gravityAcc;
+        }
+
+        x = x + velX;
+    }
+
+      void setLocation(double x, double y) {
+        setX(x);
+        setY(y);
+    }
+
+      // position, velocity and physics flags, what WorldHistory keeps of a plain object
+      void writeState(ByteBuffer out) {
+        out.putDouble(getX()).putDouble(getY()).putDouble(getVelX()).putDouble(getVelY());
+        out.put((byte)((isFalling() ? 1 : 0) | (isJumping() ? 2 : 0)));
+    }
+
+      void readState(ByteBuffer in) {
+        setX(in.getDouble());
+        setY(in.getDouble());
+        setVelX(in.getDouble());
+        setVelY(in.getDouble());
+        byte flags = in.get();
+        setFalling((flags & 1) != 0);
+        setJumping((flags & 2) != 0);
+        savePreviousLocation();
+    }
+
+      // called at the start of every tick, and after a teleport so the renderer does not slide the object across the map
+      void savePreviousLocation() {
+        previousX = getX();
+        previousY = getY();
+    }
+
+      double getPreviousX() {
+        return previousX;
+    }
+
+      double getPreviousY() {
+        return previousY;
+    }
+
+      double getInterpolatedX(double interpolation) {
+        double previous = getPreviousX();
+        return previous + (getX() - previous) * interpolation;
+    }
+
+      double getInterpolatedY(double interpolation) {
+        double previous = getPreviousY();
+        return previous + (getY() - previous) * interpolation;
+    }
+
+      double getX() {
+        return x;
+    }
+
+      void setX(double x) {
+        this.x = x;
+    }
+
+      double getY() {
+        return y;
+    }
+
+      void setY(double y) {
+        this.y = y;
+    }
+
+      Dimension getDimension(){
+        return dimension;
+    }
+
+      void setDimension(Dimension dimension) {
+        this.dimension = dimension;
+    }
+
+      void setDimension(int width, int height){ this.dimension =  new Dimension(width, height); }
+
+      BufferedImage getStyle() {
+        return style;
+    }
+
+      void setStyle(BufferedImage style) {
+        this.style = style;
+    }
+
+      double getVelX() {
+        return velX;
+    }
+
+      void setVelX(double velX) {
+        this.velX = velX;
+    }
+
+      double getVelY() {
+        return velY;
+    }
+
+      void setVelY(double velY) {
+        this.velY = velY;
+    }
+
+      double getGravityAcc() {
+        return gravityAcc;
+    }
+
+      void setGravityAcc(double gravityAcc) {
+        this.gravityAcc = gravityAcc;
+    }
+
+      static final int TOP = 0, BOTTOM = 1, LEFT = 2, RIGHT = 3, FULL = 4;
+
+      // primitive versions of the getXxxBounds() rectangles, used by the collision checks so a tick does not allocate
+      int getBoundsX(int side){
+        if(side == TOP || side == BOTTOM)
+            return (int)getX() + dimension.width/6;
+        else if(side == RIGHT)
+            return (int)getX() + 3*dimension.width/4;
+        return (int)getX();
+    }
+
+      int getBoundsY(int side){
+        if(side == BOTTOM)
+            return (int)getY() + dimension.height/2;
+        else if(side == LEFT || side == RIGHT)
+            return (int)getY() + dimension.height/4;
+        return (int)getY();
+    }
+
+      int getBoundsWidth(int side){
+        if(side == TOP || side == BOTTOM)
+            return 2*dimension.width/3;
+        else if(side == LEFT || side == RIGHT)
+            return dimension.width/4;
+        return dimension.width;
+    }
+
+      int getBoundsHeight(int side){
+        if(side == FULL)
+            return dimension.height;
+        return dimension.height/2;
+    }
+
+      boolean intersects(int side, GameObject other, int otherSide){
+        return overlaps(getBoundsX(side), getBoundsY(side), getBoundsWidth(side), getBoundsHeight(side),
+                other.getBoundsX(otherSide), other.getBoundsY(otherSide), other.getBoundsWidth(otherSide), other.getBoundsHeight(otherSide));
+    }
+
+      // same result as Rectangle.intersects for the two areas
+      static boolean overlaps(int x1, int y1, int width1, int height1, int x2, int y2, int width2, int height2){
+        if(width1 <= 0 || height1 <= 0 || width2 <= 0 || height2 <= 0)
+            return false;
+        return x1 < x2 + width2 && x2 < x1 + width1 && y1 < y2 + height2 && y2 < y1 + height1;
+    }
+
+      //for debugging
+      Rectangle getTopBounds(){
+        return new Rectangle((int)getX()+dimension.width/6, (int)getY(), 2*dimension.width/3, dimension.height/2);
+    }
+
+      Rectangle getBottomBounds(){
+        return new Rectangle((int)getX()+dimension.width/6, (int)getY() + dimension.height/2, 2*dimension.width/3, dimension.height/2);
+    }
+
+      Rectangle getLeftBounds(){
+        return new Rectangle((int)getX(), (int)getY() + dimension.height/4, dimension.width/4, dimension.height/2);
+    }
+
+      Rectangle getRightBounds(){
+        return new Rectangle((int)getX() + 3*dimension.width/4, (int)getY() + dimension.height/4, dimension.width/4, dimension.height/2);
+    }
+
+      Rectangle getBounds(){
+        return new Rectangle((int)getX(), (int)getY(), dimension.width, dimension.height);
+    }
+
+      boolean isFalling() {
+        return falling;
+    }
+
+      void setFalling(boolean falling) {
+        this.falling = falling;
+    }
+
+      boolean isJumping() {
+        return jumping;
+    }
+
+      void setJumping(boolean jumping) {
+        this.jumping = jumping;
+    }
+}
+ enum ButtonAction {
+    JUMP,
+    M_RIGHT,
+    M_LEFT,
+    CROUCH,
+    FIRE,
+    START,
+    PAUSE_RESUME,
+    ACTION_COMPLETED,
+    SELECT,
+    GO_UP,
+    GO_DOWN,
+    GO_TO_START_SCREEN,
+    REWIND,
+    REWIND_COMPLETED,
+    NO_ACTION
+}
+
+
+  class Animation {
+
+    private int index = 0, count = 0;
+    private BufferedImage[] leftFrames, rightFrames;
+    private BufferedImage currentFrame;
+
+      Animation(BufferedImage[] leftFrames, BufferedImage[] rightFrames){
+        this.leftFrames = leftFrames;
+        this.rightFrames = rightFrames;
+
+        currentFrame = rightFrames[1];
+    }
+
+      BufferedImage animate(int speed, boolean toRight){
+        count++;
+        BufferedImage[] frames = toRight ? rightFrames : leftFrames;
+
+        if(count > speed){
+            nextFrame(frames);
+            count = 0;
+        }
+
+        return currentFrame;
+    }
+
+    private void nextFrame(BufferedImage[] frames) {
+        if(index + 3 > frames.length)
+            index = 0;
+
+        currentFrame = frames[index];
+        index++;
+    }
+
+      BufferedImage[] getLeftFrames() {
+        return leftFrames;
+    }
+
+      BufferedImage[] getRightFrames() {
+        return rightFrames;
+    }
+
+}
+  class ImageLoader {
+
+    private static final ImageLoader INSTANCE = new ImageLoader();
+
+    // decoded images, sub-images and frame arrays are shared by the whole process and must not be modified
+    private final ConcurrentHashMap<String, BufferedImage> images = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<List<Object>, BufferedImage> subImages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, BufferedImage[]> frames = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private BufferedImage marioForms;
+    private BufferedImage brickAnimation;
+
+    private ImageLoader(){
+        marioForms = loadImage("/mario-forms.png");
+        brickAnimation = loadImage("/brick-animation.png");
+    }
+
+      static ImageLoader getInstance() {
+        return INSTANCE;
+    }
+
+      // sprites and screens, converted to the display's format so drawing them needs no per-blit conversion
+      BufferedImage loadImage(String path){
+        return cached(images, path, () -> toCompatibleImage(decode(path)));
+    }
+
+      BufferedImage loadImage(File file){
+        return cached(images, file.getAbsolutePath(), () -> toCompatibleImage(decode(file)));
+    }
+
+      // level images are data, their exact pixel colours are kept. They are only read once to parse the
+      // level, so unlike the sprite sheets they are not cached
+      BufferedImage loadLevelImage(String path){
+        return decode(path);
+    }
+
+    private BufferedImage decode(String path){
+        BufferedImage imageToReturn = null;
+
+        try {
+            URL resource = getClass().getResource("/media" + path);
+            if (resource != null)
+                imageToReturn = ImageIO.read(resource);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return imageToReturn;
+    }
+
+    private BufferedImage decode(File file){
+        BufferedImage imageToReturn = null;
+
+        try {
+            imageToReturn = ImageIO.read(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return imageToReturn;
+    }
+
+      BufferedImage getSubImage(BufferedImage image, int col, int row, int w, int h){
+        List<Object> key = List.of(image, col, row, w, h);
+        return cached(subImages, key, () -> {
+            if((col == 1 || col == 4) && row == 3){ //koopa
+                return copyOf(image.getSubimage((col-1)*48, 128, w, h));
+            }
+            return copyOf(image.getSubimage((col-1)*48, (row-1)*48, w, h));
+        });
+    }
+
+      BufferedImage[] getLeftFrames(int marioForm){
+        return cached(frames, "left-" + marioForm, () -> {
+            BufferedImage[] leftFrames = new BufferedImage[5];
+            int col = 1;
+            int width = 52, height = 48;
+
+            if(marioForm == 1) { //super mario
+                col = 4;
+                width = 48;
+                height = 96;
+            }
+            else if(marioForm == 2){ //fire mario
+                col = 7;
+                width = 48;
+                height = 96;
+            }
+
+            for(int i = 0; i < 5; i++){
+                leftFrames[i] = copyOf(marioForms.getSubimage((col-1)*width, (i)*height, width, height));
+            }
+            return leftFrames;
+        });
+    }
+
+      BufferedImage[] getRightFrames(int marioForm){
+        return cached(frames, "right-" + marioForm, () -> {
+            BufferedImage[] rightFrames = new BufferedImage[5];
+            int col = 2;
+            int width = 52, height = 48;
+
+            if(marioForm == 1) { //super mario
+                col = 5;
+                width = 48;
+                height = 96;
+            }
+            else if(marioForm == 2){ //fire mario
+                col = 8;
+                width = 48;
+                height = 96;
+            }
+
+            for(int i = 0; i < 5; i++){
+                rightFrames[i] = copyOf(marioForms.getSubimage((col-1)*width, (i)*height, width, height));
+            }
+            return rightFrames;
+        });
+    }
+
+      BufferedImage[] getBrickFrames() {
+        return cached(frames, "brick", () -> {
+            BufferedImage[] brickFrames = new BufferedImage[4];
+            for(int i = 0; i < 4; i++){
+                brickFrames[i] = copyOf(brickAnimation.getSubimage(i*105, 0, 105, 105));
+            }
+            return brickFrames;
+        });
+    }
+
+    // sub-images share their parent's raster, a standalone copy lets every frame be cached in video memory on its own
+    private BufferedImage copyOf(BufferedImage image){
+        return toCompatibleImage(image, true);
+    }
+
+      static BufferedImage toCompatibleImage(BufferedImage image){
+        return toCompatibleImage(image, false);
+    }
+
+    private static BufferedImage toCompatibleImage(BufferedImage image, boolean alwaysCopy){
+        if(image == null)
+            return null;
+
+        int width = image.getWidth(), height = image.getHeight();
+        int transparency = getTransparency(image);
+        GraphicsConfiguration configuration = getGraphicsConfiguration();
+
+        BufferedImage compatible;
+        if(configuration != null)
+            compatible = configuration.createCompatibleImage(width, height, transparency);
+        else
+            compatible = new BufferedImage(width, height, transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+
+        if(!alwaysCopy && compatible.getType() == image.getType() && compatible.getColorModel().equals(image.getColorModel()))
+            return image;
+
+        Graphics2D g2 = compatible.createGraphics();
+        g2.setComposite(AlphaComposite.Src);
+        g2.drawImage(image, 0, 0, null);
+        g2.dispose();
+        return compatible;
+    }
+
+    // only images that really use partial alpha get a translucent format
+    private static int getTransparency(BufferedImage image){
+        if(!image.getColorModel().hasAlpha())
+            return Transparency.OPAQUE;
+
+        int width = image.getWidth();
+        int[] row = new int[width];
+        boolean bitmask = false;
+        for(int y = 0; y < image.getHeight(); y++){
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for(int pixel : row){
+                int alpha = pixel >>> 24;
+                if(alpha != 0 && alpha != 255)
+                    return Transparency.TRANSLUCENT;
+                if(alpha == 0)
+                    bitmask = true;
+            }
+        }
+        return bitmask ? Transparency.BITMASK : Transparency.OPAQUE;
+    }
+
+    // null when running headless, images then fall back to plain INT_RGB / INT_ARGB
+    static GraphicsConfiguration getGraphicsConfiguration(){
+        if(GraphicsEnvironment.isHeadless())
+            return null;
+
+        try {
+            return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        } catch (HeadlessException e) {
+            return null;
+        }
+    }
+
+    private <K, V> V cached(ConcurrentHashMap<K, V> cache, K key, Supplier<V> loader){
+        V value = cache.get(key);
+        if(value != null){
+            hits.incrementAndGet();
+            return value;
+        }
+
+        misses.incrementAndGet();
+        value = loader.get();
+        if(value == null)
+            return null;
+
+        V existing = cache.putIfAbsent(key, value);
+        return existing != null ? existing : value;
+    }
+
+      long getHitCount() {
+        return hits.get();
+    }
+
+      long getMissCount() {
+        return misses.get();
+    }
+
+      int getCachedCount() {
+        return images.size() + subImages.size() + frames.size();
+    }
+}
+
+  class RenderSnapshot {
+
+    private GameStatus gameStatus;
+    private StartScreenSelection startScreenSelection;
+    private int selectedMap;
+    private int cameraX, cameraY;
+    private int score, remainingLives, coins, remainingTime;
+    private long inputTime;
+
+    private int spriteCount;
+    private BufferedImage[] images = new BufferedImage[256];
+    private AcceleratedImage[] acceleratedImages = new AcceleratedImage[256];
+    private int[] xs = new int[256], ys = new int[256];
+
+      void clear() {
+        Arrays.fill(images, 0, spriteCount, null);
+        Arrays.fill(acceleratedImages, 0, spriteCount, null);
+        spriteCount = 0;
+        gameStatus = null;
+        cameraX = cameraY = 0;
+        score = remainingLives = coins = remainingTime = 0;
+        inputTime = 0;
+    }
+
+      void setScreen(GameStatus gameStatus, StartScreenSelection startScreenSelection, int selectedMap) {
+        this.gameStatus = gameStatus;
+        this.startScreenSelection = startScreenSelection;
+        this.selectedMap = selectedMap;
+    }
+
+      void setCamera(int cameraX, int cameraY) {
+        this.cameraX = cameraX;
+        this.cameraY = cameraY;
+    }
+
+      void setHud(int score, int remainingLives, int coins, int remainingTime) {
+        this.score = score;
+        this.remainingLives = remainingLives;
+        this.coins = coins;
+        this.remainingTime = remainingTime;
+    }
+
+      void add(BufferedImage image, int x, int y) {
+        if (image == null)
+            return;
+        int index = nextSlot();
+        images[index] = image;
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+      void add(AcceleratedImage image, int x, int y) {
+        if (image == null)
+            return;
+        int index = nextSlot();
+        acceleratedImages[index] = image;
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+    private int nextSlot() {
+        if (spriteCount == xs.length) {
+            int capacity = xs.length * 2;
+            images = Arrays.copyOf(images, capacity);
+            acceleratedImages = Arrays.copyOf(acceleratedImages, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        return spriteCount++;
+    }
+
+      void drawSprites(Graphics2D g2) {
+        for (int i = 0; i < spriteCount; i++) {
+            if (acceleratedImages[i] != null)
+                acceleratedImages[i].draw(g2, xs[i], ys[i]);
+            else
+                g2.drawImage(images[i], xs[i], ys[i], null);
+        }
+    }
+
+      GameStatus getGameStatus() {
+        return gameStatus;
+    }
+
+      StartScreenSelection getStartScreenSelection() {
+        return startScreenSelection;
+    }
+
+      int getSelectedMap() {
+        return selectedMap;
+    }
+
+      int getCameraX() {
+        return cameraX;
+    }
+
+      int getCameraY() {
+        return cameraY;
+    }
+
+      int getScore() {
+        return score;
+    }
+
+      int getRemainingLives() {
+        return remainingLives;
+    }
+
+      int getCoins() {
+        return coins;
+    }
+
+      int getRemainingTime() {
+        return remainingTime;
+    }
+
+      int getSpriteCount() {
+        return spriteCount;
+    }
+
+      // earliest input applied since the previous snapshot, zero if there was none
+      long getInputTime() {
+        return inputTime;
+    }
+
+      void setInputTime(long inputTime) {
+        this.inputTime = inputTime;
+    }
+}
+
+  // triple buffer: the game thread always has a buffer to write and the renderer always gets the latest complete one
+  class SnapshotExchange {
+
+    private static final int FRESH = 4;
+
+    private final RenderSnapshot[] buffers = {new RenderSnapshot(), new RenderSnapshot(), new RenderSnapshot()};
+    private final AtomicInteger shared = new AtomicInteger(1);
+    private int writeIndex = 0, readIndex = 2;
+
+      RenderSnapshot beginWrite() {
+        return buffers[writeIndex];
+    }
+
+      void publish() {
+        writeIndex = shared.getAndSet(writeIndex | FRESH) & 3;
+    }
+
+      // returns the last published snapshot, or the one read before if nothing new was published since
+      RenderSnapshot acquire() {
+        if ((shared.get() & FRESH) != 0)
+            readIndex = shared.getAndSet(readIndex) & 3;
+        return buffers[readIndex];
+    }
+}
+
+  class AcceleratedImage {
+
+    private final BufferedImage image;
+    private VolatileImage volatileImage;
+
+      AcceleratedImage(BufferedImage image) {
+        this.image = image;
+    }
+
+      // draws from a copy kept in video memory when the target is a screen, the managed image otherwise
+      void draw(Graphics2D g2, int x, int y) {
+        if (image == null)
+            return;
+
+        GraphicsConfiguration configuration = g2.getDeviceConfiguration();
+        if (configuration == null || configuration.getDevice().getType() != GraphicsDevice.TYPE_RASTER_SCREEN) {
+            g2.drawImage(image, x, y, null);
+            return;
+        }
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            int state = volatileImage == null ? VolatileImage.IMAGE_INCOMPATIBLE : volatileImage.validate(configuration);
+
+            if (state == VolatileImage.IMAGE_INCOMPATIBLE) {
+                volatileImage = configuration.createCompatibleVolatileImage(image.getWidth(), image.getHeight(), image.getTransparency());
+                if (volatileImage == null)
+                    break;
+                state = VolatileImage.IMAGE_RESTORED;
+            }
+            if (state == VolatileImage.IMAGE_RESTORED) {
+                Graphics2D volatileGraphics = volatileImage.createGraphics();
+                volatileGraphics.setComposite(AlphaComposite.Src);
+                volatileGraphics.drawImage(image, 0, 0, null);
+                volatileGraphics.dispose();
+            }
+
+            g2.drawImage(volatileImage, x, y, null);
+            if (!volatileImage.contentsLost())
+                return;
+        }
+
+        g2.drawImage(image, x, y, null);
+    }
+
+      BufferedImage getImage() {
+        return image;
+    }
+}
+
+  class MapSelection {
+
+    private static final int ROWS_PER_PAGE = 5, ROW_HEIGHT = 100, FIRST_ROW_Y = 300;
+
+    private final MapCatalogue catalogue;
+    private MapSelectionItem[] mapSelectionItems;
+
+      MapSelection(){
+        this(new MapCatalogue(new File(System.getProperty("mario.thumbnails",
+                System.getProperty("java.io.tmpdir") + File.separator + "mario-thumbnails"))));
+    }
+
+      MapSelection(MapCatalogue catalogue){
+        this.catalogue = catalogue;
+        catalogue.scan();
+    }
+
+      // only the page holding the selected map is drawn, text sizes are measured once per item
+      void draw(Graphics g, int selected){
+        g.setColor(Color.BLACK);
+        g.fillRect(0,0, 1280, 720);
+
+        MapSelectionItem[] items = getItems();
+        g.setColor(Color.WHITE);
+        if(items == null){
+            g.drawString("Loading maps...", 400, FIRST_ROW_Y);
+            return;
+        }
+
+        int first = getFirstOnPage(selected), last = Math.min(items.length, first + ROWS_PER_PAGE);
+        for(int i = first; i < last; i++){
+            MapSelectionItem item = items[i];
+            if(!item.hasLayout())
+                item.layout(g.getFontMetrics());
+
+            Point location = item.getLocation();
+            g.drawString(item.getDisplayName(), location.x + 30, location.y);
+
+            BufferedImage thumbnail = item.getThumbnail();
+            if(thumbnail != null)
+                g.drawImage(thumbnail, location.x + item.getDimension().width + 60, location.y - thumbnail.getHeight(), null);
+            else
+                item.requestThumbnail(catalogue);
+        }
+    }
+
+      // y of the row the map is drawn in on its page
+      int getRowY(int index){
+        return (index % ROWS_PER_PAGE) * ROW_HEIGHT + FIRST_ROW_Y;
+    }
+
+    private static int getFirstOnPage(int index){
+        return Math.max(0, index) / ROWS_PER_PAGE * ROWS_PER_PAGE;
+    }
+
+    // built once the catalogue has finished scanning, null before that
+    private synchronized MapSelectionItem[] getItems(){
+        if(mapSelectionItems == null){
+            List<String> maps = catalogue.getMaps();
+            if(maps != null)
+                mapSelectionItems = createItems(maps);
+        }
+        return mapSelectionItems;
+    }
+
+    private MapSelectionItem[] createItems(List<String> maps){
+        MapSelectionItem[] items = new MapSelectionItem[maps.size()];
+        for (int i = 0; i < items.length; i++) {
+            Point location = new Point(0, getRowY(i));
+            items[i] = new MapSelectionItem(maps.get(i), location);
+        }
+
+        return items;
+    }
+
+      String selectMap(Point mouseLocation, int selected) {
+        MapSelectionItem[] items = getItems();
+        if(items == null)
+            return null;
+
+        int first = getFirstOnPage(selected), last = Math.min(items.length, first + ROWS_PER_PAGE);
+        for(int i = first; i < last; i++) {
+            MapSelectionItem item = items[i];
+            if(!item.hasLayout())
+                continue;
+
+            Dimension dimension = item.getDimension();
+            Point location = item.getLocation();
+            boolean inX = location.x <= mouseLocation.x && location.x + dimension.width >= mouseLocation.x;
+            boolean inY = location.y >= mouseLocation.y && location.y - dimension.height <= mouseLocation.y;
+            if(inX && inY){
+                return item.getName();
+            }
+        }
+        return null;
+    }
+
+      String selectMap(int index){
+        MapSelectionItem[] items = getItems();
+        if(items != null && index < items.length && index > -1)
+            return items[index].getName();
+        return null;
+    }
+
+      int changeSelectedMap(int index, boolean up) {
+        MapSelectionItem[] items = getItems();
+        if(items == null || items.length == 0)
+            return 0;
+
+        if(up){
+            if(index <= 0)
+                return items.length - 1;
+            else
+                return index - 1;
+        }
+        else{
+            if(index >= items.length - 1)
+                return 0;
+            else
+                return index + 1;
+        }
+    }
+}
+
+  class MapSelectionItem {
+
+    private final String name, displayName;
+    private volatile BufferedImage thumbnail;
+    private boolean thumbnailRequested;
+    private volatile Point location;
+    private volatile Dimension dimension;
+
+      MapSelectionItem(String map, Point location){
+        this.location = location;
+        this.name = map;
+        this.displayName = map.split("[.]")[0];
+    }
+
+      // centers the name, done once on the drawing thread, location and dimension are only read after it
+      void layout(FontMetrics metrics){
+        int width = metrics.stringWidth(displayName);
+        location = new Point((1280-width)/2, location.y);
+        dimension = new Dimension(width, metrics.getHeight());
+    }
+
+      boolean hasLayout(){
+        return dimension != null;
+    }
+
+      void requestThumbnail(MapCatalogue catalogue){
+        if(thumbnailRequested)
+            return;
+
+        thumbnailRequested = true;
+        catalogue.loadThumbnail(name, image -> thumbnail = image);
+    }
+
+      String getName() {
+        return name;
+    }
+
+      String getDisplayName() {
+        return displayName;
+    }
+
+      BufferedImage getThumbnail() {
+        return thumbnail;
+    }
+
+      Point getLocation() {
+        return location;
+    }
+
+      Dimension getDimension() {
+        return dimension;
+    }
+}
+
+  // lists the level images and renders their thumbnails on one background thread, thumbnails are
+  // cached on disk under the SHA-256 of the level image so an edited level gets a new one
+  class MapCatalogue {
+
+    private static final int THUMBNAIL_WIDTH = 320, THUMBNAIL_HEIGHT = 40;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "map-catalogue");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final File thumbnailDirectory;
+    private volatile List<String> maps;
+
+      MapCatalogue(File thumbnailDirectory) {
+        this.thumbnailDirectory = thumbnailDirectory;
+    }
+
+      void scan() {
+        executor.execute(() -> maps = findMaps());
+    }
+
+      // the level images by name, null while the scan is running
+      List<String> getMaps() {
+        return maps;
+    }
+
+      void loadThumbnail(String map, Consumer<BufferedImage> consumer) {
+        executor.execute(() -> {
+            BufferedImage thumbnail = loadThumbnail(map);
+            if (thumbnail != null)
+                consumer.accept(thumbnail);
+        });
+    }
+
+    // levels packed in a jar cannot be listed, only the bundled one is offered then
+    private static List<String> findMaps() {
+        File directory = getMapDirectory();
+        if (directory == null)
+            return List.of("Start Game.png");
+
+        String[] names = directory.list((dir, name) -> name.endsWith(".png"));
+        if (names == null)
+            return List.of();
+
+        Arrays.sort(names);
+        return List.of(names);
+    }
+
+    private static File getMapDirectory() {
+        try {
+            URL resource = MapCatalogue.class.getResource("/media/maps");
+            if (resource != null && "file".equals(resource.getProtocol()))
+                return new File(resource.toURI());
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+
+        return null;
+    }
+
+    private BufferedImage loadThumbnail(String map) {
+        try (InputStream in = MapCatalogue.class.getResourceAsStream("/media/maps/" + map)) {
+            if (in == null)
+                return null;
+
+            byte[] level = in.readAllBytes();
+            File cached = new File(thumbnailDirectory, toHex(MessageDigest.getInstance("SHA-256").digest(level)) + ".png");
+            if (cached.isFile()) {
+                BufferedImage thumbnail = ImageIO.read(cached);
+                if (thumbnail != null)
+                    return thumbnail;
+            }
+
+            BufferedImage levelImage = ImageIO.read(new ByteArrayInputStream(level));
+            if (levelImage == null)
+                return null;
+
+            BufferedImage thumbnail = scale(levelImage);
+            if (thumbnailDirectory.isDirectory() || thumbnailDirectory.mkdirs())
+                ImageIO.write(thumbnail, "png", cached);
+            return thumbnail;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+
+        return null;
+    }
+
+    // keeps the level's aspect ratio and its hard pixel edges
+    private static BufferedImage scale(BufferedImage levelImage) {
+        double factor = Math.min((double) THUMBNAIL_WIDTH / levelImage.getWidth(), (double) THUMBNAIL_HEIGHT / levelImage.getHeight());
+        int width = Math.max(1, (int) (levelImage.getWidth() * factor)), height = Math.max(1, (int) (levelImage.getHeight() * factor));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = thumbnail.createGraphics();
+        g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2.drawImage(levelImage, 0, 0, width, height, null);
+        g2.dispose();
+        return thumbnail;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
+
+
+
+  enum StartScreenSelection {
+    START_GAME(0),
+    VIEW_HELP(1),
+    VIEW_ABOUT(2);
+
+    private final int lineNumber;
+    StartScreenSelection(int lineNumber){ this.lineNumber = lineNumber; }
+
+      StartScreenSelection getSelection(int number){
+        if(number == 0)
+            return START_GAME;
+        else if(number == 1)
+            return VIEW_HELP;
+        else if(number == 2)
+            return VIEW_ABOUT;
+        else return null;
+    }
+
+      StartScreenSelection select(boolean toUp){
+        int selection;
+
+        if(lineNumber > -1 && lineNumber < 3){
+            selection = lineNumber - (toUp ? 1 : -1);
+            if(selection == -1)
+                selection = 2;
+            else if(selection == 3)
+                selection = 0;
+            return getSelection(selection);
+        }
+
+        return null;
+    }
+
+      int getLineNumber() {
+        return lineNumber;
+    }
+}
+
+
+  interface GameView {
+
+    void render();
+
+    // the location is in the view's coordinates
+    String selectMapViaMouse(Point location, int selected);
+
+    String selectMapViaKeyboard(int index);
+
+    int changeSelectedMap(int index, boolean up);
+}
+
+  class HeadlessView implements GameView {
+
+    @Override
+    public void render() {}
+
+    @Override
+    public String selectMapViaMouse(Point location, int selected) {
+        return null;
+    }
+
+    @Override
+    public String selectMapViaKeyboard(int index) {
+        return null;
+    }
+
+    @Override
+    public int changeSelectedMap(int index, boolean up) {
+        return index;
+    }
+}
+
+  class CanvasView extends Canvas implements GameView {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UIManager painter;
+    private BufferStrategy strategy;
+    private volatile long lastPresentTime, maxPresentTime, totalPresentTime, presentedFrames;
+
+      CanvasView(UIManager painter, int width, int height) {
+        this.painter = painter;
+        setPreferredSize(new Dimension(width, height));
+        setIgnoreRepaint(true);
+        setFocusable(false);
+    }
+
+      // has to be called once the canvas is displayable, returns false when no strategy could be created
+      boolean createStrategy(int buffers, boolean vsync) {
+        buffers = Math.max(2, Math.min(3, buffers));
+        BufferCapabilities flipping = new BufferCapabilities(new ImageCapabilities(true), new ImageCapabilities(true),
+                BufferCapabilities.FlipContents.UNDEFINED);
+
+        if (vsync) {
+            try {
+                createBufferStrategy(buffers, withVSync(flipping));
+                strategy = getBufferStrategy();
+                return strategy != null;
+            } catch (Exception e) {
+                System.err.println("No vsync, page flipping without it: " + e);
+            }
+        }
+
+        try {
+            createBufferStrategy(buffers, flipping);
+        } catch (Exception e) {
+            try {
+                createBufferStrategy(buffers);
+            } catch (Exception fallback) {
+                System.err.println(fallback.getMessage());
+                return false;
+            }
+        }
+
+        strategy = getBufferStrategy();
+        return strategy != null;
+    }
+
+    // vsync is only reachable through the JDK's internal capabilities class, without it page flipping is used as is.
+    // Since JDK 16 the class is only accessible when the game runs with
+    // --add-exports java.desktop/sun.java2d.pipe.hw=ALL-UNNAMED
+    private static BufferCapabilities withVSync(BufferCapabilities capabilities) throws Exception {
+        Class<?> extended = Class.forName("sun.java2d.pipe.hw.ExtendedBufferCapabilities");
+        Class<?> vsyncType = Class.forName("sun.java2d.pipe.hw.ExtendedBufferCapabilities$VSyncType");
+        Object vsyncOn = vsyncType.getField("VSYNC_ON").get(null);
+        return (BufferCapabilities) extended.getConstructor(BufferCapabilities.class, vsyncType).newInstance(capabilities, vsyncOn);
+    }
+
+    @Override
+    public void render() {
+        RenderSnapshot frame;
+        do {
+            do {
+                Graphics2D g2 = (Graphics2D) strategy.getDrawGraphics();
+                g2.setColor(painter.getBackground());
+                g2.fillRect(0, 0, getWidth(), getHeight());
+                frame = painter.drawFrame(g2);
+                g2.dispose();
+            } while (strategy.contentsRestored());
+
+            long start = System.nanoTime();
+            strategy.show();
+            Toolkit.getDefaultToolkit().sync();
+            recordPresent(System.nanoTime() - start);
+        } while (strategy.contentsLost());
+
+        painter.framePresented(frame);
+    }
+
+    private void recordPresent(long time) {
+        lastPresentTime = time;
+        maxPresentTime = Math.max(maxPresentTime, time);
+        totalPresentTime += time;
+        presentedFrames++;
+    }
+
+    @Override
+    public String selectMapViaMouse(Point location, int selected) {
+        return painter.selectMapAt(location, selected);
+    }
+
+    @Override
+    public String selectMapViaKeyboard(int index) {
+        return painter.selectMapViaKeyboard(index);
+    }
+
+    @Override
+    public int changeSelectedMap(int index, boolean up) {
+        return painter.changeSelectedMap(index, up);
+    }
+
+      long getLastPresentNanos() {
+        return lastPresentTime;
+    }
+
+      long getMaxPresentNanos() {
+        return maxPresentTime;
+    }
+
+      long getAveragePresentNanos() {
+        long frames = presentedFrames;
+        return frames == 0 ? 0 : totalPresentTime / frames;
+    }
+}
+
+  class UIManager extends JPanel implements GameView {
+
+    private GameEngine engine;
+    private Font gameFont;
+    private BufferedImage startScreenImage, aboutScreenImage, helpScreenImage, gameOverScreen;
+    private BufferedImage heartIcon;
+    private BufferedImage coinIcon;
+    private BufferedImage selectIcon;
+    private MapSelection mapSelection;
+
+      UIManager(GameEngine engine, int width, int height) {
+        setPreferredSize(new Dimension(width, height));
+        setMaximumSize(new Dimension(width, height));
+        setMinimumSize(new Dimension(width, height));
+
+        this.engine = engine;
+        ImageLoader loader = engine.getImageLoader();
+
+        mapSelection = new MapSelection();
+
+        BufferedImage sprite = loader.loadImage("/sprite.png");
+        this.heartIcon = loader.loadImage("/heart-icon.png");
+        this.coinIcon = loader.getSubImage(sprite, 1, 5, 48, 48);
+        this.selectIcon = loader.loadImage("/select-icon.png");
+        this.startScreenImage = loader.loadImage("/start-screen.png");
+        this.helpScreenImage = loader.loadImage("/help-screen.png");
+        this.aboutScreenImage = loader.loadImage("/about-screen.png");
+        this.gameOverScreen = loader.loadImage("/game-over.png");
+
+        try {
+            InputStream in = getClass().getResourceAsStream("/media/font/mario-font.ttf");
+            gameFont = Font.createFont(Font.TRUETYPE_FONT, in);
+        } catch (FontFormatException | IOException e) {
+            gameFont = new Font("Verdana", Font.PLAIN, 12);
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+      public void paintComponent(Graphics g){
+        super.paintComponent(g);
+
+        Graphics2D g2 = (Graphics2D) g.create();
+        RenderSnapshot frame = drawFrame(g2);
+        g2.dispose();
+        framePresented(frame);
+    }
+
+      // draws the whole frame, used by paintComponent and by the active renderer
+      // only reads the snapshot the game thread published last, never the live game state
+      RenderSnapshot drawFrame(Graphics2D g2){
+        RenderSnapshot frame = engine.acquireSnapshot();
+        GameStatus gameStatus = frame.getGameStatus();
+        if(gameStatus == null)
+            return frame;
+
+        if(gameStatus == GameStatus.START_SCREEN){
+            drawStartScreen(g2);
+        }
+        else if(gameStatus == GameStatus.MAP_SELECTION){
+            drawMapSelectionScreen(g2, frame);
+        }
+        else if(gameStatus == GameStatus.ABOUT_SCREEN){
+            drawAboutScreen(g2);
+        }
+        else if(gameStatus == GameStatus.HELP_SCREEN){
+            drawHelpScreen(g2);
+        }
+        else if(gameStatus == GameStatus.GAME_OVER){
+            drawGameOverScreen(g2);
+        }
+        else {
+            int cameraX = frame.getCameraX(), cameraY = frame.getCameraY();
+            g2.translate(-cameraX, -cameraY);
+            frame.drawSprites(g2);
+            g2.translate(cameraX, cameraY);
+
+            drawPoints(g2, frame);
+            drawRemainingLives(g2, frame);
+            drawAcquiredCoins(g2, frame);
+            drawRemainingTime(g2, frame);
+
+            if(gameStatus == GameStatus.PAUSED){
+                drawPauseScreen(g2);
+            }
+            else if(gameStatus == GameStatus.MISSION_PASSED){
+                drawVictoryScreen(g2);
+            }
+        }
+        return frame;
+    }
+
+      void framePresented(RenderSnapshot frame) {
+        engine.framePresented(frame);
+    }
+
+    private void drawRemainingTime(Graphics2D g2, RenderSnapshot frame) {
+
+    }
+
+    private void drawVictoryScreen(Graphics2D g2) {
+
+    }
+
+    private void drawHelpScreen(Graphics2D g2) {
+        g2.drawImage(helpScreenImage, 0, 0, null);
+    }
+
+    private void drawAboutScreen(Graphics2D g2) {
+        g2.drawImage(aboutScreenImage, 0, 0, null);
+    }
+
+    private void drawGameOverScreen(Graphics2D g2) {
+
+    }
+
+    private void drawPauseScreen(Graphics2D g2) {
+
+    }
+
+    private void drawAcquiredCoins(Graphics2D g2, RenderSnapshot frame) {
+
+    }
+
+    private void drawRemainingLives(Graphics2D g2, RenderSnapshot frame) {
+
+    }
+
+    private void drawPoints(Graphics2D g2, RenderSnapshot frame){
+
+    }
+
+    private void drawStartScreen(Graphics2D g2){
+
+    }
+
+    private void drawMapSelectionScreen(Graphics2D g2, RenderSnapshot frame){
+        g2.setFont(gameFont.deriveFont(50f));
+        g2.setColor(Color.WHITE);
+        int row = frame.getSelectedMap();
+        mapSelection.draw(g2, row);
+        int y_location = mapSelection.getRowY(row)-selectIcon.getHeight();
+        g2.drawImage(selectIcon, 375, y_location, null);
+    }
+
+    @Override
+    public void render() {
+        repaint();
+    }
+
+    @Override
+    public String selectMapViaMouse(Point location, int selected) {
+        return selectMapAt(location, selected);
+    }
+
+      String selectMapAt(Point mouseLocation, int selected) {
+        if(mouseLocation == null)
+            return null;
+        return mapSelection.selectMap(mouseLocation, selected);
+    }
+
+    @Override
+    public String selectMapViaKeyboard(int index){
+        return mapSelection.selectMap(index);
+    }
+
+    @Override
+    public int changeSelectedMap(int index, boolean up){
+        return mapSelection.changeSelectedMap(index, up);
+    }
+}
+class Map1 {
+
+    private static final int DRAW_MARGIN = 96;
+    private double remainingTime;
+    private Mario mario;
+    private ArrayList<Brick> bricks = new ArrayList<>();
+    private ArrayList<Enemy> enemies = new ArrayList<>();
+    private EntityStore enemyStore = new EntityStore(64);
+    // the enemies within the activation band around the view, the others sleep and cost nothing per tick.
+    // -Dmario.activation.margin is how far past the view's edges they are woken, they go back to sleep
+    // twice as far out so an enemy on the border does not flip every tick. An enemy spawns asleep when its
+    // chunk is populated and starts walking once the view comes within one margin of it, so when it starts
+    // no longer depends on where in its chunk it was placed
+    private ArrayList<Enemy> awakeEnemies = new ArrayList<>();
+    // Mario and the awake enemies, kept sorted along x for the dynamic-vs-dynamic contacts
+    private SweepAndPrune movingObjects = new SweepAndPrune(MapCreator.PIXEL_MULTIPLIER);
+    private ArrayList<Enemy> nearbyEnemies = new ArrayList<>();
+    private int activationMargin = Integer.getInteger("mario.activation.margin", 480);
+    // from this many awake enemies on, their integration and brick collisions run in slices on the
+    // common fork-join pool, -Dmario.enemies.parallelThreshold. Below it the fork costs more than it saves
+    static final int PARALLEL_SLICE = 256;
+    private int parallelThreshold = Integer.getInteger("mario.enemies.parallelThreshold", 2048);
+    private ArrayList<Brick> groundBricks = new ArrayList<>();
+    private ArrayList<Brick> revealedBricks = new ArrayList<>();
+    private BrickGrid brickGrid = new BrickGrid(48);
+    private StaticLayer staticLayer = new StaticLayer(brickGrid, 1280);
+    private EnemyColumns enemyColumns = new EnemyColumns(256);
+    private ArrayList<Brick> visibleBricks = new ArrayList<>();
+    private ArrayList<Enemy> visibleEnemies = new ArrayList<>();
+    private int drawnObjects, culledObjects;
+    private EndFlag endPoint;
+    private AcceleratedImage backgroundImage;
+    private double bottomBorder = 720 - 96;
+    private String path;
+    private LevelLayout layout;
+    private MapCreator creator;
+    private ArrayList<Brick>[] chunkBricks;
+    private int terrainChunks, populatedChunks, releasedChunks;
+    private final HashMap<Integer, Enemy> enemiesBySpawn = new HashMap<>();
+
+    // the state right after the first chunks were built, reset() restores it into the same objects
+    private boolean initialStateCaptured;
+    private double initialTime;
+    private ArrayList<Brick>[] initialBricks;
+    private Enemy[] initialEnemies, initialAwakeEnemies;
+    private int[] initialHandles;
+    private EntityStore initialEnemyState;
+    private int initialTerrainChunks, initialPopulatedChunks, initialReleasedChunks;
+    private double initialEndX, initialEndY;
+
+
+    public Map1(double remainingTime, BufferedImage backgroundImage) {
+        this.backgroundImage = new AcceleratedImage(backgroundImage);
+        this.remainingTime = remainingTime;
+    }
+
+
+    public Mario getMario() {
+        return mario;
+    }
+
+    public void setMario(Mario mario) {
+        if (this.mario != null)
+            movingObjects.remove(this.mario);
+        this.mario = mario;
+        movingObjects.add(mario);
+    }
+
+    // sweeps the moving objects for Mario's candidate pairs, they stay valid until the next call
+    public SweepAndPrune findMovingPairs() {
+        movingObjects.update(mario);
+        return movingObjects;
+    }
+
+    public ArrayList<Enemy> getEnemies() {
+        return enemies;
+    }
+
+    public ArrayList<Enemy> getAwakeEnemies() {
+        return awakeEnemies;
+    }
+
+    public void setActivationMargin(int activationMargin) {
+        this.activationMargin = activationMargin;
     }
-}
 
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
 
+    public boolean isParallelPhase() {
+        return awakeEnemies.size() >= parallelThreshold;
+    }
 
+    public EntityStore getEnemyStore() {
+        return enemyStore;
+    }
 
-  abstract class Enemy extends GameObject{
 
-      Enemy(double x, double y, BufferedImage style) {
-        super(x, y, style);
-        setFalling(false);
-        setJumping(false);
-    }
-}
+    public ArrayList<Brick> getAllBricks() {
+        ArrayList<Brick> allBricks = new ArrayList<>();
 
+        allBricks.addAll(bricks);
+        allBricks.addAll(groundBricks);
 
+        return allBricks;
+    }
 
-  class Goomba extends Enemy{
+    public void getBricksNear(double minX, double minY, double maxX, double maxY, ArrayList<Brick> result) {
+        brickGrid.query(minX, minY, maxX, maxY, result);
+    }
 
-    private BufferedImage rightImage;
+    public void addBrick(Brick brick) {
+        this.bricks.add(brick);
+        brickGrid.insert(brick);
+    }
 
-      Goomba(double x, double y, BufferedImage style) {
-        super(x, y, style);
-        setVelX(3);
+    public void addGroundBrick(Brick brick) {
+        this.groundBricks.add(brick);
+        brick.setStaticTerrain(true);
+        brickGrid.insert(brick);
+        staticLayer.invalidate(brick);
     }
 
-    @Override
-      void draw(Graphics g){
-        if(getVelX() > 0){
-            g.drawImage(rightImage, (int)getX(), (int)getY(), null);
-        }
-        else
-            super.draw(g);
+    public void moveBrick(Brick brick, double x, double y) {
+        if(brick.isStaticTerrain())
+            staticLayer.invalidate(brick);
+        brickGrid.move(brick, x, y);
+        if(brick.isStaticTerrain())
+            staticLayer.invalidate(brick);
     }
 
-      void setRightImage(BufferedImage rightImage) {
-        this.rightImage = rightImage;
+    public void removeBrick(Brick brick) {
+        bricks.remove(brick);
+        groundBricks.remove(brick);
+        brickGrid.remove(brick);
+        if(brick.isStaticTerrain())
+            staticLayer.invalidate(brick);
     }
-}
 
-  class Mario extends GameObject{
+    public void addEnemy(Enemy enemy) {
+        this.enemies.add(enemy);
+        enemyColumns.insert(enemy);
+    }
 
-    private int remainingLives;
-    private int coins;
-    private int points;
-    private double invincibilityTimer;
-    private MarioForm marioForm;
-    private boolean toRight = true;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public void setLayout(LevelLayout layout, MapCreator creator) {
+        this.layout = layout;
+        this.creator = creator;
+        this.chunkBricks = new ArrayList[layout.getChunkCount()];
+    }
 
-      Mario(double x, double y){
-        super(x, y, null);
-        setDimension(48,48);
+    // builds the chunks the view approaches and releases the ones far behind it. Terrain is built one chunk
+    // ahead of the enemies so they always have ground under them. The camera never scrolls back, so a
+    // released chunk is not built again
+    public void updateChunks(double viewX, int viewWidth) {
+        if (layout == null)
+            return;
 
-        remainingLives = 3;
-        points = 0;
-        coins = 0;
-        invincibilityTimer = 0;
+        int chunkCount = layout.getChunkCount();
+        int populate = Math.min(chunkCount, toChunk(viewX + viewWidth) + 2);
+        int terrain = Math.min(chunkCount, populate + 1);
+        int release = Math.min(populate, toChunk(viewX) - 1);
+
+        while (terrainChunks < terrain)
+            buildTerrain(terrainChunks++);
+        while (populatedChunks < populate)
+            populate(populatedChunks++);
+        while (releasedChunks < release)
+            release(releasedChunks++);
+        updateActivation(viewX, viewWidth);
+
+        if (!initialStateCaptured)
+            captureInitialState();
+    }
+
+    // puts the enemies that left the sleep band to sleep, then wakes the sleeping ones inside the wake band.
+    // Only the awake enemies and the columns of the wake band are looked at, never the whole level
+    private void updateActivation(double viewX, int viewWidth) {
+        double sleepMin = viewX - 2 * activationMargin, sleepMax = viewX + viewWidth + 2 * activationMargin;
+        for (int i = awakeEnemies.size() - 1; i >= 0; i--) {
+            Enemy enemy = awakeEnemies.get(i);
+            double x = enemy.getX();
+            if (x + enemy.getDimension().width < sleepMin || x > sleepMax) {
+                awakeEnemies.remove(i);
+                movingObjects.remove(enemy);
+                enemyStore.sleep(enemy.getHandle());
+            }
+        }
 
-        ImageLoader imageLoader = new ImageLoader();
-        BufferedImage[] leftFrames = imageLoader.getLeftFrames(MarioForm.SMALL);
-        BufferedImage[] rightFrames = imageLoader.getRightFrames(MarioForm.SMALL);
+        enemyColumns.query(viewX - activationMargin, viewX + viewWidth + activationMargin, nearbyEnemies);
+        for (int i = 0; i < nearbyEnemies.size(); i++) {
+            wake(nearbyEnemies.get(i));
+        }
+    }
 
-        Animation animation = new Animation(leftFrames, rightFrames);
-        marioForm = new MarioForm(animation, false, false);
-        setStyle(marioForm.getCurrentStyle(toRight, false, false));
+    private void wake(Enemy enemy) {
+        if (enemyStore.isAwake(enemy.getHandle()))
+            return;
+
+        enemyStore.wake(enemy.getHandle());
+        awakeEnemies.add(enemy);
+        movingObjects.add(enemy);
     }
 
-    @Override
-      void draw(Graphics g){
-        boolean movingInX = (getVelX() != 0);
-        boolean movingInY = (getVelY() != 0);
+    private void captureInitialState() {
+        initialStateCaptured = true;
+        initialTime = remainingTime;
+        initialTerrainChunks = terrainChunks;
+        initialPopulatedChunks = populatedChunks;
+        initialReleasedChunks = releasedChunks;
+        initialBricks = Arrays.copyOf(chunkBricks, terrainChunks);
 
-        setStyle(marioForm.getCurrentStyle(toRight, movingInX, movingInY));
+        initialEnemies = enemies.toArray(new Enemy[0]);
+        initialHandles = new int[initialEnemies.length];
+        for (int i = 0; i < initialEnemies.length; i++) {
+            initialHandles[i] = initialEnemies[i].getHandle();
+        }
+        initialAwakeEnemies = awakeEnemies.toArray(new Enemy[0]);
+        initialEnemyState = enemyStore.copy();
 
-        super.draw(g);
+        if (endPoint != null) {
+            initialEndX = endPoint.getX();
+            initialEndY = endPoint.getY();
+        }
     }
 
-      void jump(GameEngine engine) {
-        if(!isJumping() && !isFalling()){
-            setJumping(true);
-            setVelY(10);
-            setVelY(-2);
-            setVelY(10);
-            engine.playJump();
+    // puts the map back to its initial state without parsing or building anything, chunks built
+    // after the capture are dropped and built again when the view reaches them
+    public void reset() {
+        if (!initialStateCaptured)
+            return;
+
+        // only the live objects are taken out, the grid keeps its cell lists for the bricks coming back
+        for (int i = 0; i < bricks.size(); i++)
+            brickGrid.remove(bricks.get(i));
+        for (int i = 0; i < groundBricks.size(); i++)
+            brickGrid.remove(groundBricks.get(i));
+        bricks.clear();
+        groundBricks.clear();
+        revealedBricks.clear();
+        staticLayer.clear();
+        for (int chunk = initialTerrainChunks; chunk < terrainChunks; chunk++) {
+            chunkBricks[chunk] = null;
+            layout.release(chunk);
+        }
+        for (int chunk = initialReleasedChunks; chunk < initialTerrainChunks; chunk++) {
+            ArrayList<Brick> built = initialBricks[chunk];
+            chunkBricks[chunk] = built;
+            for (int i = 0; i < built.size(); i++) {
+                Brick brick = built.get(i);
+                if (brick.isStaticTerrain())
+                    addGroundBrick(brick);
+                else
+                    addBrick(brick);
+            }
         }
-    }
 
-      void move(boolean toRight, Camera camera) {
-        if(toRight){
-            setVelX(5);
+        for (int i = 0; i < enemies.size(); i++)
+            enemyColumns.remove(enemies.get(i));
+        enemies.clear();
+        awakeEnemies.clear();
+        enemyStore.copyFrom(initialEnemyState);
+        for (int i = 0; i < initialEnemies.length; i++) {
+            initialEnemies[i].attach(enemyStore, initialHandles[i]);
+            addEnemy(initialEnemies[i]);
         }
-        else if(camera.getX() < getX()){
-            setVelX(-5);
+        movingObjects.clear();
+        movingObjects.add(mario);
+        for (int i = 0; i < initialAwakeEnemies.length; i++) {
+            awakeEnemies.add(initialAwakeEnemies[i]);
+            movingObjects.add(initialAwakeEnemies[i]);
         }
 
-        this.toRight = toRight;
+        terrainChunks = initialTerrainChunks;
+        populatedChunks = initialPopulatedChunks;
+        releasedChunks = initialReleasedChunks;
+        remainingTime = initialTime;
+
+        if (endPoint != null) {
+            endPoint.setTouched(false);
+            endPoint.setLocation(initialEndX, initialEndY);
+            endPoint.setVelX(0);
+            endPoint.setVelY(0);
+            endPoint.setFalling(true);
+            endPoint.setJumping(false);
+            endPoint.savePreviousLocation();
+        }
     }
 
-      boolean onTouchEnemy(GameEngine engine){
+    private void buildTerrain(int chunk) {
+        int[] tiles = layout.getTiles(chunk);
+        ArrayList<Brick> built = new ArrayList<>();
 
-        if(!marioForm.isSuper() && !marioForm.isFire()){
-            remainingLives--;
-            engine.playMarioDies();
-            return true;
-        }
-        else{
-            engine.shakeCamera();
-            marioForm = marioForm.onTouchEnemy(engine.getImageLoader());
-            setDimension(48, 48);
-            return false;
+        for (int i = 0; i < tiles.length; i++) {
+            int tile = LevelLayout.getTile(tiles[i]);
+            if (LevelLayout.isTerrain(tile)) {
+                Brick brick = creator.addBrick(this, tile, layout.getColumn(chunk, tiles[i]) * MapCreator.PIXEL_MULTIPLIER,
+                        LevelLayout.getRow(tiles[i]) * MapCreator.PIXEL_MULTIPLIER);
+                if (brick != null)
+                    built.add(brick);
+            }
         }
+        chunkBricks[chunk] = built;
     }
 
-      void acquireCoin() {
-        coins++;
+    private void populate(int chunk) {
+        int[] tiles = layout.getTiles(chunk);
+
+        for (int i = 0; i < tiles.length; i++) {
+            int tile = LevelLayout.getTile(tiles[i]);
+            if (!LevelLayout.isTerrain(tile)) {
+                Enemy enemy = creator.createEnemy(this, tile, layout.getColumn(chunk, tiles[i]) * MapCreator.PIXEL_MULTIPLIER,
+                        LevelLayout.getRow(tiles[i]) * MapCreator.PIXEL_MULTIPLIER);
+                if (enemy != null) {
+                    enemy.setSpawnId(chunk << 16 | i);
+                    addEnemy(enemy);
+                }
+            }
+        }
     }
 
-      void acquirePoints(int point){
-        points = points + point;
+    // drops the chunk's bricks and every enemy that ended up behind the chunk's right border
+    private void release(int chunk) {
+        double right = (double)(chunk + 1) * getChunkWidth();
+        releaseTerrain(chunk);
+
+        for (int i = enemies.size() - 1; i >= 0; i--) {
+            Enemy enemy = enemies.get(i);
+            if (enemy.getX() + enemy.getDimension().width <= right)
+                removeEnemy(enemy);
+        }
+
+        staticLayer.release(right);
     }
 
-      int getRemainingLives() {
-        return remainingLives;
+    private void releaseTerrain(int chunk) {
+        ArrayList<Brick> built = chunkBricks[chunk];
+        if (built == null)
+            return;
+
+        for (int i = 0; i < built.size(); i++) {
+            Brick brick = built.get(i);
+            revealedBricks.remove(brick);
+            removeBrick(brick);
+        }
+        chunkBricks[chunk] = null;
+        layout.release(chunk);
     }
 
-      void setRemainingLives(int remainingLives) {
-        this.remainingLives = remainingLives;
+    // upper bound of the bytes writeState needs
+    public int getStateSize() {
+        return 256 + enemies.size() * 40;
     }
 
-      int getPoints() {
-        return points;
+    public void writeState(ByteBuffer out) {
+        out.putDouble(remainingTime);
+        out.putInt(terrainChunks).putInt(populatedChunks).putInt(releasedChunks);
+        mario.writeState(out);
+        endPoint.writeState(out);
+
+        out.putInt(enemies.size());
+        for (int i = 0; i < enemies.size(); i++) {
+            Enemy enemy = enemies.get(i);
+            out.putInt(enemy.getSpawnId());
+            out.put((byte)(enemyStore.isAwake(enemy.getHandle()) ? 1 : 0));
+            enemy.writeState(out);
+        }
     }
 
-      int getCoins() {
-        return coins;
+    // brings back the chunks and enemies that existed when the state was written. Enemies still alive keep
+    // their objects, ones released or not yet spawned since then are built again from the layout
+    public void readState(ByteBuffer in) {
+        remainingTime = in.getDouble();
+        int terrain = in.getInt(), populated = in.getInt(), released = in.getInt();
+        mario.readState(in);
+        endPoint.readState(in);
+
+        for (int chunk = releasedChunks; chunk < terrainChunks; chunk++) {
+            if (chunk < released || chunk >= terrain)
+                releaseTerrain(chunk);
+        }
+        for (int chunk = released; chunk < terrain; chunk++) {
+            if (chunkBricks[chunk] == null)
+                buildTerrain(chunk);
+        }
+        terrainChunks = terrain;
+        populatedChunks = populated;
+        releasedChunks = released;
+
+        enemiesBySpawn.clear();
+        for (int i = 0; i < enemies.size(); i++) {
+            Enemy enemy = enemies.get(i);
+            enemiesBySpawn.put(enemy.getSpawnId(), enemy);
+            enemyColumns.remove(enemy);
+        }
+        enemies.clear();
+        awakeEnemies.clear();
+        movingObjects.clear();
+        movingObjects.add(mario);
+
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int spawnId = in.getInt();
+            boolean awake = in.get() != 0;
+            Enemy enemy = enemiesBySpawn.remove(spawnId);
+            if (enemy == null) {
+                int chunk = spawnId >>> 16, tile = layout.getTiles(chunk)[spawnId & 0xffff];
+                enemy = creator.createEnemy(this, LevelLayout.getTile(tile), layout.getColumn(chunk, tile) * MapCreator.PIXEL_MULTIPLIER,
+                        LevelLayout.getRow(tile) * MapCreator.PIXEL_MULTIPLIER);
+                enemy.setSpawnId(spawnId);
+            }
+            enemy.readState(in);
+            addEnemy(enemy);
+            enemyStore.sleep(enemy.getHandle());
+            if (awake)
+                wake(enemy);
+        }
+
+        for (Enemy enemy : enemiesBySpawn.values()) {
+            enemy.detach();
+        }
+        enemiesBySpawn.clear();
     }
 
-      MarioForm getMarioForm() {
-        return marioForm;
+    private int getChunkWidth() {
+        return layout.getChunkColumns() * MapCreator.PIXEL_MULTIPLIER;
     }
 
-      void setMarioForm(MarioForm marioForm) {
-        this.marioForm = marioForm;
+    private int toChunk(double x) {
+        return Math.max(0, (int)Math.floor(x / getChunkWidth()));
     }
 
-      boolean isSuper() {
-        return marioForm.isSuper();
+    public LevelLayout getLayout() {
+        return layout;
     }
 
-      boolean getToRight() {
-        return toRight;
+    // chunks whose bricks and enemies currently exist
+    public int getLoadedChunks() {
+        return terrainChunks - releasedChunks;
     }
 
-      void resetLocation() {
-        setVelX(0);
-        setVelY(0);
-        setX(50);
-        setJumping(false);
-        setFalling(true);
+    // collects what is visible in the view into the snapshot, in drawing order
+    public void addSprites(RenderSnapshot snapshot, double viewX, double viewY, int viewWidth, int viewHeight, double interpolation){
+        double minX = viewX - DRAW_MARGIN, minY = viewY - DRAW_MARGIN;
+        double maxX = viewX + viewWidth + DRAW_MARGIN, maxY = viewY + viewHeight + DRAW_MARGIN;
+        drawnObjects = 0;
+
+        snapshot.add(backgroundImage, 0, 0);
+        addBricks(snapshot, minX, minY, maxX, maxY);
+        addEnemies(snapshot, minX, maxX, interpolation);
+        mario.addTo(snapshot, interpolation);
+        endPoint.addTo(snapshot, interpolation);
+
+        culledObjects = bricks.size() + enemies.size() - drawnObjects;
     }
-}
-  class MarioForm {
 
-      static final int SMALL = 0, SUPER = 1, FIRE = 2;
+    private void addBricks(RenderSnapshot snapshot, double minX, double minY, double maxX, double maxY) {
+        staticLayer.addTo(snapshot, minX, maxX);
 
-    private Animation animation;
-    private boolean isSuper, isFire; //note: fire form has priority over super form
-    private BufferedImage fireballStyle;
+        brickGrid.query(minX, minY, maxX, maxY, visibleBricks);
+        for(int i = 0; i < visibleBricks.size(); i++){
+            Brick brick = visibleBricks.get(i);
+            if(!brick.isStaticTerrain()){
+                brick.addTo(snapshot, 1);
+                drawnObjects++;
+            }
+        }
+    }
 
-      MarioForm(Animation animation, boolean isSuper, boolean isFire){
-        this.animation = animation;
-        this.isSuper = isSuper;
-        this.isFire = isFire;
+    private void addEnemies(RenderSnapshot snapshot, double minX, double maxX, double interpolation) {
+        enemyColumns.query(minX, maxX, visibleEnemies);
+        for(int i = 0; i < visibleEnemies.size(); i++){
+            visibleEnemies.get(i).addTo(snapshot, interpolation);
+        }
+        drawnObjects += visibleEnemies.size();
+    }
 
-        ImageLoader imageLoader = new ImageLoader();
-        BufferedImage fireball = imageLoader.loadImage("/sprite.png");
-        fireballStyle = imageLoader.getSubImage(fireball, 3, 4, 24, 24);
+    // bricks and enemies drawn and skipped in the last frame, static terrain is counted in chunks
+    public int getDrawnChunks() {
+        return staticLayer.getDrawnChunks();
     }
 
-      BufferedImage getCurrentStyle(boolean toRight, boolean movingInX, boolean movingInY){
+    public int getDrawnObjects() {
+        return drawnObjects;
+    }
 
-        BufferedImage style;
+    public int getCulledObjects() {
+        return culledObjects;
+    }
 
-        if(movingInY && toRight){
-            style = animation.getRightFrames()[0];
-        }
-        else if(movingInY){
-            style = animation.getLeftFrames()[0];
-        }
-        else if(movingInX){
-            style = animation.animate(5, toRight);
+    public void savePreviousLocations() {
+        mario.savePreviousLocation();
+        enemyStore.savePreviousLocations();
+        endPoint.savePreviousLocation();
+    }
+
+    public void updateLocations() {
+        mario.updateLocation();
+        if (isParallelPhase())
+            enemyStore.updateLocations(PARALLEL_SLICE);
+        else
+            enemyStore.updateLocations();
+        for(int i = 0; i < awakeEnemies.size(); i++){
+            enemyColumns.update(awakeEnemies.get(i));
         }
-        else {
-            if(toRight){
-                style = animation.getRightFrames()[1];
+
+        for(int i = revealedBricks.size() - 1; i >= 0; i--){
+            OrdinaryBrick brick = (OrdinaryBrick)revealedBricks.get(i);
+            brick.animate();
+            if(brick.getFrames() < 0){
+                bricks.remove(brick);
+                brickGrid.remove(brick);
+                revealedBricks.remove(i);
             }
-            else
-                style = animation.getLeftFrames()[1];
         }
 
-        return style;
+        endPoint.updateLocation();
     }
 
-      MarioForm onTouchEnemy(ImageLoader imageLoader) {
-        BufferedImage[] leftFrames = imageLoader.getLeftFrames(0);
-        BufferedImage[] rightFrames= imageLoader.getRightFrames(0);
+    public double getBottomBorder() {
+        return bottomBorder;
+    }
 
-        Animation newAnimation = new Animation(leftFrames, rightFrames);
 
-        return new MarioForm(newAnimation, false, false);
+
+    public void setEndPoint(EndFlag endPoint) {
+        this.endPoint = endPoint;
     }
 
-      boolean isSuper() {
-        return isSuper;
+    public EndFlag getEndPoint() {
+        return endPoint;
     }
 
-      void setSuper(boolean aSuper) {
-        isSuper = aSuper;
+    public void addRevealedBrick(OrdinaryBrick ordinaryBrick) {
+        revealedBricks.add(ordinaryBrick);
     }
 
-      boolean isFire() {
-        return isFire;
+    public void removeEnemy(Enemy object) {
+        if(enemies.remove(object)) {
+            awakeEnemies.remove(object);
+            movingObjects.remove(object);
+            enemyColumns.remove(object);
+            object.detach();
+        }
     }
-}
-  class EndFlag extends GameObject{
 
-    private boolean touched = false;
 
-      EndFlag(double x, double y, BufferedImage style) {
-        super(x, y, style);
+    public String getPath() {
+        return path;
     }
 
-    @Override
-      void updateLocation() {
-        if(touched){
-            if(getY() + getDimension().getHeight() >= 576){
-                setFalling(false);
-                setVelY(0);
-                setY(576 - getDimension().getHeight());
-            }
-            super.updateLocation();
-        }
+    public void setPath(String path) {
+        this.path = path;
     }
 
-      boolean isTouched() {
-        return touched;
+    public void updateTime(double passed){
+        remainingTime = remainingTime - passed;
     }
 
-      void setTouched(boolean touched) {
-        this.touched = touched;
+    public boolean isTimeOver(){
+        return remainingTime <= 0;
+    }
+
+    public double getRemainingTime() {
+        return remainingTime;
     }
 }
 
-  abstract class GameObject {
+class BrickGrid {
+
+    private final int cellSize;
+    // columns is a ring over the level's columns: level column c lives in ring column c & (columns - 1).
+    // A ring column is handed to another level column once its bricks are gone, so released chunks give
+    // their cells back and the grid only grows with the span of columns that hold bricks at the same time
+    private int columns, rows;
+    private ArrayList<Brick>[] cells;
+    private int[] columnOf, columnBricks;
+
+    BrickGrid(int cellSize) {
+        this(cellSize, 64, 16);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    BrickGrid(int cellSize, int columns, int rows) {
+        this.cellSize = cellSize;
+        this.columns = Integer.highestOneBit(Math.max(1, columns - 1)) << 1;
+        this.rows = Math.max(1, rows);
+        this.cells = new ArrayList[this.columns * this.rows];
+        this.columnOf = new int[this.columns];
+        this.columnBricks = new int[this.columns];
+        Arrays.fill(columnOf, -1);
+    }
+
+    void insert(Brick brick) {
+        int minCol = toCell(brick.getX());
+        int minRow = toCell(brick.getY());
+        int maxCol = toCell(brick.getX() + brick.getDimension().width - 1);
+        int maxRow = toCell(brick.getY() + brick.getDimension().height - 1);
+
+        if (maxRow >= rows)
+            grow(columns, maxRow + 1);
+
+        for (int col = minCol; col <= maxCol; col++) {
+            int ringColumn = claim(col);
+            for (int row = minRow; row <= maxRow; row++) {
+                int index = ringColumn * rows + row;
+                if (cells[index] == null)
+                    cells[index] = new ArrayList<>(2);
+                cells[index].add(brick);
+                columnBricks[ringColumn]++;
+            }
+        }
+    }
 
-    private double x, y;
+    void remove(Brick brick) {
+        int minCol = toCell(brick.getX());
+        int minRow = toCell(brick.getY());
+        int maxCol = toCell(brick.getX() + brick.getDimension().width - 1);
+        int maxRow = Math.min(rows - 1, toCell(brick.getY() + brick.getDimension().height - 1));
+
+        for (int col = minCol; col <= maxCol; col++) {
+            int ringColumn = col & (columns - 1);
+            if (columnOf[ringColumn] != col)
+                continue;
+
+            for (int row = minRow; row <= maxRow; row++) {
+                ArrayList<Brick> cell = cells[ringColumn * rows + row];
+                if (cell != null && cell.remove(brick))
+                    columnBricks[ringColumn]--;
+            }
+        }
+    }
 
-    private double velX, velY;
+    void move(Brick brick, double x, double y) {
+        remove(brick);
+        brick.setLocation(x, y);
+        insert(brick);
+    }
 
-    private Dimension dimension;
+    void clear() {
+        Arrays.fill(cells, null);
+        Arrays.fill(columnOf, -1);
+        Arrays.fill(columnBricks, 0);
+    }
 
-    private BufferedImage style;
+    // fills 'result' with every brick whose cells overlap the given area, each brick at most once
+    void query(double minX, double minY, double maxX, double maxY, ArrayList<Brick> result) {
+        result.clear();
 
-    private double gravityAcc;
+        int minCol = toCell(minX);
+        int minRow = toCell(minY);
+        int maxCol = toCell(maxX);
+        int maxRow = Math.min(rows - 1, toCell(maxY));
 
-    private boolean falling, jumping;
+        for (int col = minCol; col <= maxCol; col++) {
+            int ringColumn = col & (columns - 1);
+            if (columnOf[ringColumn] != col)
+                continue;
 
-      GameObject(double x, double y, BufferedImage style){
-        setLocation(x, y);
-        setStyle(style);
+            for (int row = minRow; row <= maxRow; row++) {
+                ArrayList<Brick> cell = cells[ringColumn * rows + row];
+                if (cell == null)
+                    continue;
 
-        if(style != null){
-            setDimension(style.getWidth(), style.getHeight());
+                for (int i = 0; i < cell.size(); i++) {
+                    Brick brick = cell.get(i);
+                    // a brick covering several cells is reported from the first of its cells inside the query
+                    if (Math.max(toCell(brick.getX()), minCol) == col && Math.max(toCell(brick.getY()), minRow) == row)
+                        result.add(brick);
+                }
+            }
         }
+    }
 
-        setVelX(0);
-        setVelY(0);
-        setGravityAcc(0.38);
-        jumping = false;
-        falling = true;
+    int getCellSize() {
+        return cellSize;
     }
 
-      void draw(Graphics g) {
-        BufferedImage style = getStyle();
+    // number of ring columns, stays at the widest span of columns holding bricks at once
+    int getColumnCapacity() {
+        return columns;
+    }
 
-        if(style != null){
-            g.drawImage(style, (int)x, (int)y, null);
+    private int toCell(double coordinate) {
+        return Math.max(0, (int)Math.floor(coordinate / cellSize));
+    }
+
+    // the ring column holding the level column, taking over an empty one or growing the ring when
+    // another level column still has bricks there
+    private int claim(int column) {
+        while (true) {
+            int ringColumn = column & (columns - 1);
+            if (columnOf[ringColumn] == column)
+                return ringColumn;
+            if (columnBricks[ringColumn] == 0) {
+                columnOf[ringColumn] = column;
+                return ringColumn;
+            }
+            grow(columns * 2, rows);
         }
+    }
 
-        //for debugging
-        /*Graphics2D g2 = (Graphics2D)g;
-        g2.setColor(Color.WHITE);
+    // live columns keep distinct ring columns when the ring doubles, their cell lists move over as they are
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void grow(int newColumns, int neededRows) {
+        int newRows = rows;
+        while (newRows < neededRows)
+            newRows *= 2;
+
+        ArrayList<Brick>[] newCells = new ArrayList[newColumns * newRows];
+        int[] newColumnOf = new int[newColumns], newColumnBricks = new int[newColumns];
+        Arrays.fill(newColumnOf, -1);
+        for (int ringColumn = 0; ringColumn < columns; ringColumn++) {
+            if (columnBricks[ringColumn] == 0)
+                continue;
+
+            int moved = columnOf[ringColumn] & (newColumns - 1);
+            System.arraycopy(cells, ringColumn * rows, newCells, moved * newRows, rows);
+            newColumnOf[moved] = columnOf[ringColumn];
+            newColumnBricks[moved] = columnBricks[ringColumn];
+        }
 
-        g2.draw(getTopBounds());
-        g2.draw(getBottomBounds());
-        g2.draw(getRightBounds());
-        g2.draw(getLeftBounds());*/
+        cells = newCells;
+        columnOf = newColumnOf;
+        columnBricks = newColumnBricks;
+        columns = newColumns;
+        rows = newRows;
     }
+}
 
-      void updateLocation() {
-        if(jumping && velY <= 0){
-            jumping = false;
-            falling = true;
+class EntityStore {
+
+    private double[] x, y, previousX, previousY, velX, velY, gravityAcc;
+    private int[] width, height;
+    private boolean[] falling, jumping;
+
+    // handles stay valid for the lifetime of an entity, slots are compacted with swap-remove.
+    // Slots below awakeCount are the awake entities, only those are integrated
+    private int[] handleToSlot, slotToHandle;
+    private int[] freeHandles;
+    private int freeHandleCount, handleCount, size, awakeCount;
+
+    EntityStore(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        x = new double[capacity];
+        y = new double[capacity];
+        previousX = new double[capacity];
+        previousY = new double[capacity];
+        velX = new double[capacity];
+        velY = new double[capacity];
+        gravityAcc = new double[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        falling = new boolean[capacity];
+        jumping = new boolean[capacity];
+        slotToHandle = new int[capacity];
+        handleToSlot = new int[capacity];
+        freeHandles = new int[capacity];
+    }
+
+    int add(double x, double y, int width, int height, double gravityAcc) {
+        if (size == this.x.length)
+            grow();
+
+        int handle;
+        if (freeHandleCount > 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            if (handleCount == handleToSlot.length)
+                handleToSlot = Arrays.copyOf(handleToSlot, handleToSlot.length * 2);
+            handle = handleCount++;
         }
-        else if(jumping){
-            velY = velY - gravityAcc;
-            y = y - velY;
+
+        int slot = size++;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        this.previousX[slot] = x;
+        this.previousY[slot] = y;
+        this.velX[slot] = 0;
+        this.velY[slot] = 0;
+        this.gravityAcc[slot] = gravityAcc;
+        this.width[slot] = width;
+        this.height[slot] = height;
+        this.falling[slot] = true;
+        this.jumping[slot] = false;
+
+        slotToHandle[slot] = handle;
+        handleToSlot[handle] = slot;
+        return handle;
+    }
+
+    void remove(int handle) {
+        int slot = handleToSlot[handle];
+        if (slot < 0)
+            return;
+
+        if (slot < awakeCount) {
+            swap(slot, --awakeCount);
+            slot = awakeCount;
         }
 
-        if(falling){
-            y = y + velY;
-            velY = velY + gravityAcc;
+        int last = --size;
+        if (slot != last) {
+            x[slot] = x[last];
+            y[slot] = y[last];
+            previousX[slot] = previousX[last];
+            previousY[slot] = previousY[last];
+            velX[slot] = velX[last];
+            velY[slot] = velY[last];
+            gravityAcc[slot] = gravityAcc[last];
+            width[slot] = width[last];
+            height[slot] = height[last];
+            falling[slot] = falling[last];
+            jumping[slot] = jumping[last];
+
+            int movedHandle = slotToHandle[last];
+            slotToHandle[slot] = movedHandle;
+            handleToSlot[movedHandle] = slot;
         }
 
-        x = x + velX;
+        handleToSlot[handle] = -1;
+        if (freeHandleCount == freeHandles.length)
+            freeHandles = Arrays.copyOf(freeHandles, freeHandles.length * 2);
+        freeHandles[freeHandleCount++] = handle;
+    }
+
+    void clear() {
+        Arrays.fill(handleToSlot, 0, handleCount, -1);
+        size = 0;
+        awakeCount = 0;
+        handleCount = 0;
+        freeHandleCount = 0;
+    }
+
+    EntityStore copy() {
+        EntityStore copy = new EntityStore(x.length);
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    // bulk copies slots and handles, only allocates when this store is smaller than the source
+    void copyFrom(EntityStore source) {
+        while (x.length < source.size)
+            grow();
+        if (handleToSlot.length < source.handleCount)
+            handleToSlot = new int[source.handleToSlot.length];
+        if (freeHandles.length < source.freeHandleCount)
+            freeHandles = new int[source.freeHandles.length];
+
+        int count = source.size;
+        System.arraycopy(source.x, 0, x, 0, count);
+        System.arraycopy(source.y, 0, y, 0, count);
+        System.arraycopy(source.previousX, 0, previousX, 0, count);
+        System.arraycopy(source.previousY, 0, previousY, 0, count);
+        System.arraycopy(source.velX, 0, velX, 0, count);
+        System.arraycopy(source.velY, 0, velY, 0, count);
+        System.arraycopy(source.gravityAcc, 0, gravityAcc, 0, count);
+        System.arraycopy(source.width, 0, width, 0, count);
+        System.arraycopy(source.height, 0, height, 0, count);
+        System.arraycopy(source.falling, 0, falling, 0, count);
+        System.arraycopy(source.jumping, 0, jumping, 0, count);
+        System.arraycopy(source.slotToHandle, 0, slotToHandle, 0, count);
+        System.arraycopy(source.handleToSlot, 0, handleToSlot, 0, source.handleCount);
+        System.arraycopy(source.freeHandles, 0, freeHandles, 0, source.freeHandleCount);
+
+        size = count;
+        awakeCount = source.awakeCount;
+        handleCount = source.handleCount;
+        freeHandleCount = source.freeHandleCount;
+    }
+
+    // same integration as GameObject.updateLocation, over contiguous arrays
+    void updateLocations() {
+        for (int slot = 0; slot < awakeCount; slot++) {
+            integrate(slot);
+        }
     }
 
-      void setLocation(double x, double y) {
-        setX(x);
-        setY(y);
+    // the slots are independent, so slices of them can be integrated on different threads
+    void updateLocations(int sliceSize) {
+        int slices = (awakeCount + sliceSize - 1) / sliceSize;
+        IntStream.range(0, slices).parallel().forEach(slice -> {
+            int end = Math.min(awakeCount, (slice + 1) * sliceSize);
+            for (int slot = slice * sliceSize; slot < end; slot++) {
+                integrate(slot);
+            }
+        });
     }
 
-      double getX() {
-        return x;
+    boolean isAwake(int handle) {
+        int slot = handleToSlot[handle];
+        return slot >= 0 && slot < awakeCount;
     }
 
-      void setX(double x) {
-        this.x = x;
+    void wake(int handle) {
+        int slot = handleToSlot[handle];
+        if (slot >= awakeCount)
+            swap(slot, awakeCount++);
     }
 
-      double getY() {
-        return y;
-    }
+    // a sleeping entity keeps its state untouched until it is woken
+    void sleep(int handle) {
+        int slot = handleToSlot[handle];
+        if (slot < 0 || slot >= awakeCount)
+            return;
 
-      void setY(double y) {
-        this.y = y;
+        previousX[slot] = x[slot];
+        previousY[slot] = y[slot];
+        swap(slot, --awakeCount);
     }
 
-      Dimension getDimension(){
-        return dimension;
+    int getAwakeCount() {
+        return awakeCount;
     }
 
-      void setDimension(Dimension dimension) {
-        this.dimension = dimension;
+    void updateLocation(int handle) {
+        integrate(handleToSlot[handle]);
     }
 
-      void setDimension(int width, int height){ this.dimension =  new Dimension(width, height); }
-
-      BufferedImage getStyle() {
-        return style;
+    void savePreviousLocations() {
+        System.arraycopy(x, 0, previousX, 0, awakeCount);
+        System.arraycopy(y, 0, previousY, 0, awakeCount);
     }
 
-      void setStyle(BufferedImage style) {
-        this.style = style;
+    void savePreviousLocation(int handle) {
+        int slot = handleToSlot[handle];
+        previousX[slot] = x[slot];
+        previousY[slot] = y[slot];
     }
 
-      double getVelX() {
-        return velX;
+    double getPreviousX(int handle) {
+        return previousX[handleToSlot[handle]];
     }
 
-      void setVelX(double velX) {
-        this.velX = velX;
+    double getPreviousY(int handle) {
+        return previousY[handleToSlot[handle]];
     }
 
-      double getVelY() {
-        return velY;
-    }
+    private void swap(int a, int b) {
+        if (a == b)
+            return;
 
-      void setVelY(double velY) {
-        this.velY = velY;
-    }
+        double value;
+        value = x[a]; x[a] = x[b]; x[b] = value;
+        value = y[a]; y[a] = y[b]; y[b] = value;
+        value = previousX[a]; previousX[a] = previousX[b]; previousX[b] = value;
+        value = previousY[a]; previousY[a] = previousY[b]; previousY[b] = value;
+        value = velX[a]; velX[a] = velX[b]; velX[b] = value;
+        value = velY[a]; velY[a] = velY[b]; velY[b] = value;
+        value = gravityAcc[a]; gravityAcc[a] = gravityAcc[b]; gravityAcc[b] = value;
+        int size;
+        size = width[a]; width[a] = width[b]; width[b] = size;
+        size = height[a]; height[a] = height[b]; height[b] = size;
+        boolean flag;
+        flag = falling[a]; falling[a] = falling[b]; falling[b] = flag;
+        flag = jumping[a]; jumping[a] = jumping[b]; jumping[b] = flag;
+
+        int handleA = slotToHandle[a], handleB = slotToHandle[b];
+        slotToHandle[a] = handleB;
+        slotToHandle[b] = handleA;
+        handleToSlot[handleB] = a;
+        handleToSlot[handleA] = b;
+    }
+
+    private void integrate(int slot) {
+        if (jumping[slot] && velY[slot] <= 0) {
+            jumping[slot] = false;
+            falling[slot] = true;
+        }
+        else if (jumping[slot]) {
+            velY[slot] = velY[slot] - gravityAcc[slot];
+            y[slot] = y[slot] - velY[slot];
+        }
 
-      double getGravityAcc() {
-        return gravityAcc;
-    }
+        if (falling[slot]) {
+            y[slot] = y[slot] + velY[slot];
+            velY[slot] = velY[slot] + gravityAcc[slot];
+        }
 
-      void setGravityAcc(double gravityAcc) {
-        this.gravityAcc = gravityAcc;
+        x[slot] = x[slot] + velX[slot];
     }
 
-      Rectangle getTopBounds(){
-        return new Rectangle((int)x+dimension.width/6, (int)y, 2*dimension.width/3, dimension.height/2);
+    private void grow() {
+        int capacity = x.length * 2;
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        previousX = Arrays.copyOf(previousX, capacity);
+        previousY = Arrays.copyOf(previousY, capacity);
+        velX = Arrays.copyOf(velX, capacity);
+        velY = Arrays.copyOf(velY, capacity);
+        gravityAcc = Arrays.copyOf(gravityAcc, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        falling = Arrays.copyOf(falling, capacity);
+        jumping = Arrays.copyOf(jumping, capacity);
+        slotToHandle = Arrays.copyOf(slotToHandle, capacity);
     }
 
-      Rectangle getBottomBounds(){
-        return new Rectangle((int)x+dimension.width/6, (int)y + dimension.height/2, 2*dimension.width/3, dimension.height/2);
+    boolean isAlive(int handle) {
+        return handle >= 0 && handle < handleCount && handleToSlot[handle] >= 0;
     }
 
-      Rectangle getLeftBounds(){
-        return new Rectangle((int)x, (int)y + dimension.height/4, dimension.width/4, dimension.height/2);
+    int size() {
+        return size;
     }
 
-      Rectangle getRightBounds(){
-        return new Rectangle((int)x + 3*dimension.width/4, (int)y + dimension.height/4, dimension.width/4, dimension.height/2);
+    int getHandle(int slot) {
+        return slotToHandle[slot];
     }
 
-      Rectangle getBounds(){
-        return new Rectangle((int)x, (int)y, dimension.width, dimension.height);
+    double getX(int handle) {
+        return x[handleToSlot[handle]];
     }
 
-      boolean isFalling() {
-        return falling;
+    void setX(int handle, double x) {
+        this.x[handleToSlot[handle]] = x;
     }
 
-      void setFalling(boolean falling) {
-        this.falling = falling;
+    double getY(int handle) {
+        return y[handleToSlot[handle]];
     }
 
-      boolean isJumping() {
-        return jumping;
+    void setY(int handle, double y) {
+        this.y[handleToSlot[handle]] = y;
     }
 
-      void setJumping(boolean jumping) {
-        this.jumping = jumping;
+    double getVelX(int handle) {
+        return velX[handleToSlot[handle]];
     }
-}
- enum ButtonAction {
-    JUMP,
-    M_RIGHT,
-    M_LEFT,
-    CROUCH,
-    FIRE,
-    START,
-    PAUSE_RESUME,
-    ACTION_COMPLETED,
-    SELECT,
-    GO_UP,
-    GO_DOWN,
-    GO_TO_START_SCREEN,
-    NO_ACTION
-}
 
+    void setVelX(int handle, double velX) {
+        this.velX[handleToSlot[handle]] = velX;
+    }
 
-  class Animation {
-
-    private int index = 0, count = 0;
-    private BufferedImage[] leftFrames, rightFrames;
-    private BufferedImage currentFrame;
+    double getVelY(int handle) {
+        return velY[handleToSlot[handle]];
+    }
 
-      Animation(BufferedImage[] leftFrames, BufferedImage[] rightFrames){
-        this.leftFrames = leftFrames;
-        this.rightFrames = rightFrames;
+    void setVelY(int handle, double velY) {
+        this.velY[handleToSlot[handle]] = velY;
+    }
 
-        currentFrame = rightFrames[1];
+    double getGravityAcc(int handle) {
+        return gravityAcc[handleToSlot[handle]];
     }
 
-      BufferedImage animate(int speed, boolean toRight){
-        count++;
-        BufferedImage[] frames = toRight ? rightFrames : leftFrames;
+    void setGravityAcc(int handle, double gravityAcc) {
+        this.gravityAcc[handleToSlot[handle]] = gravityAcc;
+    }
 
-        if(count > speed){
-            nextFrame(frames);
-            count = 0;
-        }
+    int getWidth(int handle) {
+        return width[handleToSlot[handle]];
+    }
 
-        return currentFrame;
+    int getHeight(int handle) {
+        return height[handleToSlot[handle]];
     }
 
-    private void nextFrame(BufferedImage[] frames) {
-        if(index + 3 > frames.length)
-            index = 0;
+    void setSize(int handle, int width, int height) {
+        int slot = handleToSlot[handle];
+        this.width[slot] = width;
+        this.height[slot] = height;
+    }
 
-        currentFrame = frames[index];
-        index++;
+    boolean isFalling(int handle) {
+        return falling[handleToSlot[handle]];
     }
 
-      BufferedImage[] getLeftFrames() {
-        return leftFrames;
+    void setFalling(int handle, boolean falling) {
+        this.falling[handleToSlot[handle]] = falling;
     }
 
-      BufferedImage[] getRightFrames() {
-        return rightFrames;
+    boolean isJumping(int handle) {
+        return jumping[handleToSlot[handle]];
     }
 
+    void setJumping(int handle, boolean jumping) {
+        this.jumping[handleToSlot[handle]] = jumping;
+    }
 }
-  class ImageLoader {
 
-    private BufferedImage marioForms;
-    private BufferedImage brickAnimation;
-
-      ImageLoader(){
-        marioForms = loadImage("/mario-forms.png");
-        brickAnimation = loadImage("/brick-animation.png");
-    }
+// compiles level images into the .lvl format MapCreator prefers. A .lvl records the image it came from and is
+// ignored once that image changes, until this runs again
+class LevelCompiler {
 
-      BufferedImage loadImage(String path){
-        BufferedImage imageToReturn = null;
+    // usage: LevelCompiler [directory with level images, default src/media/maps]
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
 
-        try {
-            imageToReturn = ImageIO.read(getClass().getResource("/media" + path));
-        } catch (IOException e) {
-            e.printStackTrace();
+        File directory = new File(args.length > 0 ? args[0] : "src/media/maps");
+        File[] images = directory.listFiles((dir, name) -> name.endsWith(".png"));
+        if (images == null) {
+            System.out.println("No such directory: " + directory);
+            return;
         }
 
-        return imageToReturn;
+        Arrays.sort(images);
+        for (File image : images) {
+            byte[] source = Files.readAllBytes(image.toPath());
+            BufferedImage levelImage = ImageIO.read(new ByteArrayInputStream(source));
+            if (levelImage == null) {
+                System.out.println("Skipping " + image.getName() + ", not an image");
+                continue;
+            }
+
+            String name = image.getName();
+            Path compiled = image.toPath().resolveSibling(name.substring(0, name.length() - 4) + ".lvl");
+            LevelLayout.parse(levelImage, MapCreator.CHUNK_COLUMNS).write(compiled, LevelLayout.hashSource(source));
+            System.out.println(name + " -> " + compiled.getFileName() + ", " + Files.size(compiled) + " bytes");
+        }
     }
+}
 
-      BufferedImage loadImage(File file){
-        BufferedImage imageToReturn = null;
+// the last ticks of world state in a fixed off-heap ring. Every keyframeInterval-th capture is stored whole,
+// the others as the XOR against that keyframe, written as alternating varint runs of unchanged bytes and of
+// changed bytes. A frame that does not fit pushes out the oldest ones, never leaving a delta without its keyframe
+class WorldHistory {
+
+    private final ByteBuffer ring;
+    private final int maxFrames, keyframeInterval;
+    // per frame, indexed by frame number modulo maxFrames
+    private final int[] offsets, lengths, stateLengths, keyframes;
+    private long oldestFrame = 0, nextFrame = 0, lastKeyframe = -1;
+    private int writePosition = 0;
+
+    private byte[] keyframe = new byte[0], state = new byte[0], encoded = new byte[0];
+    private int keyframeLength;
+    private long decodedKeyframe = -1;
+
+    private final LatencyHistogram captureTimes = new LatencyHistogram();
+    private long capturedBytes, capturedFrames, skippedFrames;
+
+      WorldHistory(int maxFrames, int budgetBytes, int keyframeInterval) {
+        this.maxFrames = Math.max(1, maxFrames);
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+        this.ring = ByteBuffer.allocateDirect(budgetBytes);
+        this.offsets = new int[this.maxFrames];
+        this.lengths = new int[this.maxFrames];
+        this.stateLengths = new int[this.maxFrames];
+        this.keyframes = new int[this.maxFrames];
+    }
+
+      void clear() {
+        oldestFrame = nextFrame = 0;
+        lastKeyframe = -1;
+        decodedKeyframe = -1;
+        writePosition = 0;
+    }
+
+    // the keyframe buffer only takes the new state once the frame is stored, a skipped frame leaves the
+    // base the stored deltas decode against untouched
+      void capture(GameEngine engine) {
+        long start = System.nanoTime();
+
+        ByteBuffer world = engine.writeState();
+        int length = world.remaining();
+        state = ensure(state, length);
+        world.get(state, 0, length);
+
+        boolean isKeyframe = lastKeyframe < oldestFrame || nextFrame - lastKeyframe >= keyframeInterval;
+        int size;
+        while (true) {
+            size = isKeyframe ? copyKeyframe(length) : encodeDelta(length);
+            if (size > ring.capacity()) {
+                skippedFrames++;
+                return;
+            }
+            if (writePosition + size > ring.capacity())
+                writePosition = 0;
+            evictOverlapping(writePosition, size);
+            // making room can evict the keyframe a delta was encoded against, it is stored as a keyframe then
+            if (isKeyframe || lastKeyframe >= oldestFrame)
+                break;
+            isKeyframe = true;
+        }
 
-        try {
-            imageToReturn = ImageIO.read(file);
-        } catch (IOException e) {
-            e.printStackTrace();
+        int slot = (int)(nextFrame % maxFrames);
+        offsets[slot] = writePosition;
+        lengths[slot] = size;
+        stateLengths[slot] = length;
+        ring.put(writePosition, encoded, 0, size);
+        if (isKeyframe) {
+            keyframe = ensure(keyframe, length);
+            System.arraycopy(state, 0, keyframe, 0, length);
+            keyframeLength = length;
+            lastKeyframe = nextFrame;
+            decodedKeyframe = nextFrame;
         }
+        keyframes[slot] = (int)(nextFrame - lastKeyframe);
+        nextFrame++;
+        writePosition += size;
 
-        return imageToReturn;
+        capturedBytes += size;
+        capturedFrames++;
+        captureTimes.record(System.nanoTime() - start);
     }
 
-      BufferedImage getSubImage(BufferedImage image, int col, int row, int w, int h){
-        if((col == 1 || col == 4) && row == 3){ //koopa
-            return image.getSubimage((col-1)*48, 128, w, h);
-        }
-        return image.getSubimage((col-1)*48, (row-1)*48, w, h);
-    }
+    // forgets the newest frame, which is the current state, and restores the one before it.
+    // Returns false when there is nothing older left
+      boolean rewind(GameEngine engine) {
+        if (nextFrame - oldestFrame < 2)
+            return false;
 
-      BufferedImage[] getLeftFrames(int marioForm){
-        BufferedImage[] leftFrames = new BufferedImage[5];
-        int col = 1;
-        int width = 52, height = 48;
+        long frame = nextFrame - 2;
+        int slot = (int)(frame % maxFrames);
+        long key = frame - keyframes[slot];
+        if (decodedKeyframe != key) {
+            int keySlot = (int)(key % maxFrames);
+            keyframe = ensure(keyframe, lengths[keySlot]);
+            ring.get(offsets[keySlot], keyframe, 0, lengths[keySlot]);
+            keyframeLength = lengths[keySlot];
+            decodedKeyframe = key;
+        }
 
-        if(marioForm == 1) { //super mario
-            col = 4;
-            width = 48;
-            height = 96;
+        int length = stateLengths[slot];
+        state = ensure(state, length);
+        if (key == frame) {
+            System.arraycopy(keyframe, 0, state, 0, length);
         }
-        else if(marioForm == 2){ //fire mario
-            col = 7;
-            width = 48;
-            height = 96;
+        else {
+            encoded = ensure(encoded, lengths[slot]);
+            ring.get(offsets[slot], encoded, 0, lengths[slot]);
+            decodeDelta(lengths[slot], length);
         }
+        engine.readState(ByteBuffer.wrap(state, 0, length));
 
-        for(int i = 0; i < 5; i++){
-            leftFrames[i] = marioForms.getSubimage((col-1)*width, (i)*height, width, height);
+        nextFrame = frame + 1;
+        writePosition = offsets[(int)(nextFrame % maxFrames)];
+        if (lastKeyframe >= nextFrame) {
+            lastKeyframe = -1;
+            decodedKeyframe = -1;
         }
-        return leftFrames;
+        return true;
     }
 
-      BufferedImage[] getRightFrames(int marioForm){
-        BufferedImage[] rightFrames = new BufferedImage[5];
-        int col = 2;
-        int width = 52, height = 48;
+    private int copyKeyframe(int length) {
+        encoded = ensure(encoded, length);
+        System.arraycopy(state, 0, encoded, 0, length);
+        return length;
+    }
 
-        if(marioForm == 1) { //super mario
-            col = 5;
-            width = 48;
-            height = 96;
-        }
-        else if(marioForm == 2){ //fire mario
-            col = 8;
-            width = 48;
-            height = 96;
-        }
+    private int encodeDelta(int length) {
+        encoded = ensure(encoded, length + length / 2 + 16);
+        int out = 0, position = 0;
 
-        for(int i = 0; i < 5; i++){
-            rightFrames[i] = marioForms.getSubimage((col-1)*width, (i)*height, width, height);
+        while (position < length) {
+            int unchanged = position;
+            while (unchanged < length && xor(unchanged) == 0)
+                unchanged++;
+            int changed = unchanged;
+            while (changed < length && xor(changed) != 0)
+                changed++;
+
+            out = putVarInt(out, unchanged - position);
+            out = putVarInt(out, changed - unchanged);
+            for (int i = unchanged; i < changed; i++)
+                encoded[out++] = xor(i);
+            position = changed;
         }
-        return rightFrames;
+        return out;
     }
 
-      BufferedImage[] getBrickFrames() {
-        BufferedImage[] frames = new BufferedImage[4];
-        for(int i = 0; i < 4; i++){
-            frames[i] = brickAnimation.getSubimage(i*105, 0, 105, 105);
-        }
-        return frames;
+    private byte xor(int index) {
+        return index < keyframeLength ? (byte)(state[index] ^ keyframe[index]) : state[index];
     }
-}
 
-  class MapSelection {
+    private void decodeDelta(int size, int length) {
+        int in = 0, position = 0;
+        while (in < size) {
+            int unchanged = 0, changed = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[in++];
+                unchanged |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    break;
+            }
+            for (int shift = 0; ; shift += 7) {
+                byte b = encoded[in++];
+                changed |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    break;
+            }
 
-    private ArrayList<String> maps = new ArrayList<>();
-    private MapSelectionItem[] mapSelectionItems;
+            for (int end = position + unchanged; position < end; position++)
+                state[position] = position < keyframeLength ? keyframe[position] : 0;
+            for (int end = position + changed; position < end; position++)
+                state[position] = (byte)(encoded[in++] ^ (position < keyframeLength ? keyframe[position] : 0));
+        }
+        for (; position < length; position++)
+            state[position] = keyframe[position];
+    }
 
-      MapSelection(){
-        getMaps();
-        this.mapSelectionItems = createItems(this.maps);
+    private int putVarInt(int out, int value) {
+        while ((value & ~0x7f) != 0) {
+            encoded[out++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        encoded[out++] = (byte)value;
+        return out;
+    }
+
+    // drops the oldest frames while they overlap the range or the frame table is full,
+    // then any deltas whose keyframe went with them
+    private void evictOverlapping(int start, int size) {
+        while (nextFrame > oldestFrame) {
+            int slot = (int)(oldestFrame % maxFrames);
+            boolean overlaps = offsets[slot] < start + size && start < offsets[slot] + lengths[slot];
+            if (!overlaps && nextFrame - oldestFrame < maxFrames)
+                break;
+            oldestFrame++;
+        }
+        while (nextFrame > oldestFrame && keyframes[(int)(oldestFrame % maxFrames)] != 0)
+            oldestFrame++;
+        if (decodedKeyframe < oldestFrame)
+            decodedKeyframe = -1;
     }
 
-      void draw(Graphics g){
-        g.setColor(Color.BLACK);
-        g.fillRect(0,0, 1280, 720);
+    private static byte[] ensure(byte[] array, int size) {
+        return array.length >= size ? array : new byte[Math.max(size, array.length * 2)];
+    }
 
-        if(mapSelectionItems == null){
-            System.out.println(1);
-            return;
-        }
+      int getFrameCount() {
+        return (int)(nextFrame - oldestFrame);
+    }
 
-        for(MapSelectionItem item : mapSelectionItems){
-            g.setColor(Color.WHITE);
-            int width = g.getFontMetrics().stringWidth(item.getName().split("[.]")[0]);
-            int height = g.getFontMetrics().getHeight();
-            item.setDimension( new Dimension(width, height));
-            item.setLocation( new Point((1280-width)/2, item.getLocation().y));
-            g.drawString(item.getName().split("[.]")[0], item.getLocation().x + 30, item.getLocation().y);
-        }
+      LatencyHistogram getCaptureTimes() {
+        return captureTimes;
     }
 
-    private void getMaps(){
-        //TODO: read from file
-        maps.add("Start Game.png");
+      long getAverageFrameBytes() {
+        return capturedFrames == 0 ? 0 : capturedBytes / capturedFrames;
     }
 
-    private MapSelectionItem[] createItems(ArrayList<String> maps){
-        if(maps == null)
-            return null;
+    @Override
+    public String toString() {
+        return String.format("rewind: %d frames held, %d B/frame, %d skipped, capture %s", getFrameCount(),
+                getAverageFrameBytes(), skippedFrames, captureTimes);
+    }
+}
 
-        int defaultGridSize = 100;
-        MapSelectionItem[] items = new MapSelectionItem[maps.size()];
-        for (int i = 0; i < items.length; i++) {
-            Point location = new Point(0, (i+1)*defaultGridSize+200);
-            items[i] = new MapSelectionItem(maps.get(i), location);
-        }
+// the actions applied in each tick of one map, with what is needed to play them back: the map, the seed,
+// the tick rate and the rewind history size (a rewind can only go as far back as the live history held). Stored gzipped: a header, then per action the tick delta as a varint and the action's ordinal
+class InputRecording {
 
-        return items;
+    private static final int MAGIC = 0x4D52504C, VERSION = 2;
+
+    private final String mapPath;
+    private final long seed;
+    private final int tickRate;
+    private int rewindSeconds, rewindBudget;
+    private int[] ticks = new int[256];
+    private byte[] actions = new byte[256];
+    private int count, totalTicks;
+    private boolean hasChecksum;
+    private long checksum;
+
+      InputRecording(String mapPath, long seed, int tickRate) {
+        this.mapPath = mapPath;
+        this.seed = seed;
+        this.tickRate = tickRate;
     }
 
-      String selectMap(Point mouseLocation) {
-        for(MapSelectionItem item : mapSelectionItems) {
-            Dimension dimension = item.getDimension();
-            Point location = item.getLocation();
-            boolean inX = location.x <= mouseLocation.x && location.x + dimension.width >= mouseLocation.x;
-            boolean inY = location.y >= mouseLocation.y && location.y - dimension.height <= mouseLocation.y;
-            if(inX && inY){
-                return item.getName();
-            }
+      void record(int tick, ButtonAction action) {
+        if (count == ticks.length) {
+            ticks = Arrays.copyOf(ticks, count * 2);
+            actions = Arrays.copyOf(actions, count * 2);
         }
-        return null;
+        ticks[count] = tick;
+        actions[count] = (byte) action.ordinal();
+        count++;
     }
 
-      String selectMap(int index){
-        if(index < mapSelectionItems.length && index > -1)
-            return mapSelectionItems[index].getName();
-        return null;
+      void setRewind(int seconds, int budgetBytes) {
+        this.rewindSeconds = seconds;
+        this.rewindBudget = budgetBytes;
+    }
+
+      void finish(int totalTicks, boolean hasChecksum, long checksum) {
+        this.totalTicks = totalTicks;
+        this.hasChecksum = hasChecksum;
+        this.checksum = checksum;
+    }
+
+      void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mapPath);
+            out.writeLong(seed);
+            out.writeInt(tickRate);
+            out.writeInt(rewindSeconds);
+            out.writeInt(rewindBudget);
+            out.writeInt(totalTicks);
+            out.writeBoolean(hasChecksum);
+            out.writeLong(checksum);
+            out.writeInt(count);
+
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarInt(out, ticks[i] - previous);
+                out.writeByte(actions[i]);
+                previous = ticks[i];
+            }
+        }
     }
 
-      int changeSelectedMap(int index, boolean up) {
-        if(up){
-            if(index <= 0)
-                return mapSelectionItems.length - 1;
-            else
-                return index - 1;
+      static InputRecording read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a recording");
+            int version = in.readInt();
+            if (version < 1 || version > VERSION)
+                throw new IOException(file + " is a recording of unknown version " + version);
+
+            InputRecording recording = new InputRecording(in.readUTF(), in.readLong(), in.readInt());
+            // version 1 recordings come from before rewinding existed
+            if (version >= 2)
+                recording.setRewind(in.readInt(), in.readInt());
+            int totalTicks = in.readInt();
+            boolean hasChecksum = in.readBoolean();
+            long checksum = in.readLong();
+            recording.finish(totalTicks, hasChecksum, checksum);
+
+            int count = in.readInt(), tick = 0;
+            ButtonAction[] values = ButtonAction.values();
+            for (int i = 0; i < count; i++) {
+                tick += readVarInt(in);
+                int action = in.readUnsignedByte();
+                if (action >= values.length)
+                    throw new IOException("Unknown action " + action + " in " + file);
+                recording.record(tick, values[action]);
+            }
+            return recording;
         }
-        else{
-            if(index >= mapSelectionItems.length - 1)
-                return 0;
-            else
-                return index + 1;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
         }
+        out.writeByte(value);
     }
-}
 
-  class MapSelectionItem {
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint");
+    }
 
-    private BufferedImage image;
-    private String name;
-    private Point location;
-    private Dimension dimension;
+      String getMapPath() {
+        return mapPath;
+    }
 
-      MapSelectionItem(String map, Point location){
-        this.location = location;
-        this.name = map;
+      long getSeed() {
+        return seed;
+    }
 
-        ImageLoader loader = new ImageLoader();
-        this.image = loader.loadImage("/maps/" + "Start Game.png");
+      int getTickRate() {
+        return tickRate;
+    }
 
-        this.dimension = new Dimension();
+      int getRewindSeconds() {
+        return rewindSeconds;
     }
 
+      int getRewindBudget() {
+        return rewindBudget;
+    }
 
-      String getName() {
-        return name;
+      int getTotalTicks() {
+        return totalTicks;
     }
 
-      Point getLocation() {
-        return location;
+      int getActionCount() {
+        return count;
     }
 
-      Dimension getDimension() {
-        return dimension;
+      int getTick(int index) {
+        return ticks[index];
     }
 
-      void setDimension(Dimension dimension) {
-        this.dimension = dimension;
+      ButtonAction getAction(int index) {
+        return ButtonAction.values()[actions[index]];
     }
 
-      void setLocation(Point location) {
-        this.location = location;
+      boolean hasChecksum() {
+        return hasChecksum;
     }
-}
 
+      long getChecksum() {
+        return checksum;
+    }
+}
 
+class ReplayRunner {
 
-  enum StartScreenSelection {
-    START_GAME(0),
-    VIEW_HELP(1),
-    VIEW_ABOUT(2);
+    // usage: ReplayRunner <recording> [repetitions], exits with 1 when a replay ends in a different state
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 1) {
+            System.out.println("usage: ReplayRunner <recording> [repetitions]");
+            return;
+        }
 
-    private final int lineNumber;
-    StartScreenSelection(int lineNumber){ this.lineNumber = lineNumber; }
+        InputRecording recording = InputRecording.read(new File(args[0]));
+        long repetitions = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        boolean diverged = false;
 
-      StartScreenSelection getSelection(int number){
-        if(number == 0)
-            return START_GAME;
-        else if(number == 1)
-            return VIEW_HELP;
-        else if(number == 2)
-            return VIEW_ABOUT;
-        else return null;
-    }
+        for (long repetition = 0; repetition < repetitions; repetition++) {
+            GameEngine engine = load(recording);
+            if (engine == null) {
+                System.out.println("Cannot load " + recording.getMapPath());
+                System.exit(1);
+            }
 
-      StartScreenSelection select(boolean toUp){
-        int selection;
+            long start = System.nanoTime();
+            play(engine, recording);
+            long elapsed = System.nanoTime() - start;
 
-        if(lineNumber > -1 && lineNumber < 3){
-            selection = lineNumber - (toUp ? 1 : -1);
-            if(selection == -1)
-                selection = 2;
-            else if(selection == 3)
-                selection = 0;
-            return getSelection(selection);
+            long checksum = engine.getStateChecksum();
+            boolean matches = !recording.hasChecksum() || checksum == recording.getChecksum();
+            diverged |= !matches;
+            System.out.println("Replayed " + recording.getTotalTicks() + " ticks in " + elapsed / 1000000 + " ms, "
+                    + (long)(recording.getTotalTicks() / (elapsed / 1e9)) + " ticks/sec, status " + engine.getGameStatus()
+                    + (recording.hasChecksum() ? (matches ? ", state matches" : ", STATE DIVERGED") : ", no checksum recorded"));
         }
 
-        return null;
+        if (diverged)
+            System.exit(1);
     }
 
-      int getLineNumber() {
-        return lineNumber;
+    // a fresh engine configured like the recorded one with the recorded map loaded, null when it cannot be
+      static GameEngine load(InputRecording recording) {
+        GameEngine engine = GameEngine.createHeadless();
+        engine.setTickRate(recording.getTickRate());
+        engine.setSeed(recording.getSeed());
+        engine.enableRewind(recording.getRewindSeconds(), recording.getRewindBudget());
+        return engine.loadMap(recording.getMapPath()) ? engine : null;
+    }
+
+    // the recorded actions of a tick are applied right before it, where the live game applied them
+    static void play(GameEngine engine, InputRecording recording) {
+        int next = 0, actionCount = recording.getActionCount();
+        for (int tick = 0; tick < recording.getTotalTicks(); tick++) {
+            while (next < actionCount && recording.getTick(next) == tick) {
+                engine.receiveInput(recording.getAction(next++));
+            }
+            engine.tick();
+        }
     }
 }
 
+class ReplayCheck {
 
-  class UIManager extends JPanel{
+    // usage: ReplayCheck [map file], plays the map, returns to the start screen and plays it again in one
+    // engine while recording, then replays that recording in a fresh engine. Exits with 1 when they differ,
+    // which is what happens when state of the first play leaks into the second
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
 
-    private GameEngine engine;
-    private Font gameFont;
-    private BufferedImage startScreenImage, aboutScreenImage, helpScreenImage, gameOverScreen;
-    private BufferedImage heartIcon;
-    private BufferedImage coinIcon;
-    private BufferedImage selectIcon;
-    private MapSelection mapSelection;
+        String map = args.length > 0 ? args[0] : "Map 2.png";
+        File file = File.createTempFile("mario", ".rec");
+        file.deleteOnExit();
 
-      UIManager(GameEngine engine, int width, int height) {
-        setPreferredSize(new Dimension(width, height));
-        setMaximumSize(new Dimension(width, height));
-        setMinimumSize(new Dimension(width, height));
+        GameEngine engine = GameEngine.createHeadless();
+        engine.setSeed(1);
+        engine.recordTo(file);
+        if (!engine.loadMap(map)) {
+            System.err.println("Could not load map " + map);
+            System.exit(1);
+        }
+        for (int i = 0; i < 50; i++)
+            engine.tick();
+        engine.receiveInput(ButtonAction.GO_TO_START_SCREEN);
+        engine.tick();
+
+        engine.loadMap(map);
+        engine.receiveInput(ButtonAction.M_RIGHT);
+        for (int i = 0; i < 100; i++)
+            engine.tick();
+        engine.receiveInput(ButtonAction.GO_TO_START_SCREEN);
+        engine.tick();
+
+        InputRecording recording = InputRecording.read(file);
+        GameEngine replay = ReplayRunner.load(recording);
+        if (replay == null) {
+            System.err.println("Could not load map " + recording.getMapPath());
+            System.exit(1);
+        }
+        ReplayRunner.play(replay, recording);
 
-        this.engine = engine;
-        ImageLoader loader = engine.getImageLoader();
+        boolean matches = recording.hasChecksum() && replay.getStateChecksum() == recording.getChecksum();
+        System.out.println("Replayed the second play of " + map + ", " + recording.getTotalTicks() + " ticks, "
+                + (matches ? "state matches" : "STATE DIVERGED"));
+        if (!matches)
+            System.exit(1);
+    }
+}
 
-        mapSelection = new MapSelection();
+class HeadlessGame {
 
-        BufferedImage sprite = loader.loadImage("/sprite.png");
-        this.heartIcon = loader.loadImage("/heart-icon.png");
-        this.coinIcon = loader.getSubImage(sprite, 1, 5, 48, 48);
-        this.selectIcon = loader.loadImage("/select-icon.png");
-        this.startScreenImage = loader.loadImage("/start-screen.png");
-        this.helpScreenImage = loader.loadImage("/help-screen.png");
-        this.aboutScreenImage = loader.loadImage("/about-screen.png");
-        this.gameOverScreen = loader.loadImage("/game-over.png");
+    // usage: HeadlessGame [map file] [ticks]
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
 
-        try {
-            InputStream in = getClass().getResourceAsStream("/media/font/mario-font.ttf");
-            gameFont = Font.createFont(Font.TRUETYPE_FONT, in);
-        } catch (FontFormatException | IOException e) {
-            gameFont = new Font("Verdana", Font.PLAIN, 12);
-            e.printStackTrace();
+        String map = args.length > 0 ? args[0] : "Map 2.png";
+        long ticks = args.length > 1 ? Long.parseLong(args[1]) : 100000;
+
+        GameEngine engine = GameEngine.createHeadless();
+        if (!engine.loadMap(map)) {
+            System.err.println("Could not load map " + map);
+            return;
+        }
+        engine.receiveInput(ButtonAction.M_RIGHT);
+
+        long start = System.nanoTime();
+        // stops once the game is over, later ticks would not simulate anything
+        for (long i = 0; i < ticks && engine.getGameStatus() == GameStatus.RUNNING; i++) {
+            engine.tick();
         }
+        long elapsed = System.nanoTime() - start;
+
+        long simulated = engine.getSimulatedTicks();
+        System.out.println("Simulated " + simulated + " of " + ticks + " ticks in " + elapsed / 1000000 + " ms, "
+                + (long)(simulated / (elapsed / 1e9)) + " ticks/sec, status " + engine.getGameStatus());
     }
+}
 
-    @Override
-      public void paintComponent(Graphics g){
-        super.paintComponent(g);
+class SimulationBenchmark {
 
-        Graphics2D g2 = (Graphics2D) g.create();
-        GameStatus gameStatus = engine.getGameStatus();
+    private static final int WARMUP_MILLIS = 2000, MEASURE_MILLIS = 3000;
+    private static final String[] MAPS = {"Map 2.png", "Start Game.png"};
 
-        if(gameStatus == GameStatus.START_SCREEN){
-            drawStartScreen(g2);
-        }
-        else if(gameStatus == GameStatus.MAP_SELECTION){
-            drawMapSelectionScreen(g2);
-        }
-        else if(gameStatus == GameStatus.ABOUT_SCREEN){
-            drawAboutScreen(g2);
-        }
-        else if(gameStatus == GameStatus.HELP_SCREEN){
-            drawHelpScreen(g2);
-        }
-        else if(gameStatus == GameStatus.GAME_OVER){
-            drawGameOverScreen(g2);
-        }
-        else {
-            Point camLocation = engine.getCameraLocation();
-            g2.translate(-camLocation.x, -camLocation.y);
-            engine.drawMap(g2);
-            g2.translate(camLocation.x, camLocation.y);
+    private static volatile long sink;
 
-            drawPoints(g2);
-            drawRemainingLives(g2);
-            drawAcquiredCoins(g2);
-            drawRemainingTime(g2);
+    // usage: SimulationBenchmark [comma separated scales, default 1,10,100,1000]
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
 
-            if(gameStatus == GameStatus.PAUSED){
-                drawPauseScreen(g2);
-            }
-            else if(gameStatus == GameStatus.MISSION_PASSED){
-                drawVictoryScreen(g2);
+        String scales = args.length > 0 ? args[0] : "1,10,100,1000";
+        ImageLoader loader = ImageLoader.getInstance();
+
+        for (String map : MAPS) {
+            MapCreator creator = new MapCreator(loader);
+            measure("createMap(lvl) " + map, () -> sink += creator.createMap("/maps/" + map, 400).getLayout().getChunkCount());
+            measure("createMap(png) " + map, () -> sink += creator.createMap(loader.loadLevelImage("/maps/" + map), map, 400)
+                    .getLayout().getChunkCount());
+
+            BufferedImage levelImage = loader.loadLevelImage("/maps/" + map);
+            for (String scale : scales.split(",")) {
+                runLevel(map + " x" + scale.trim(), tile(levelImage, Integer.parseInt(scale.trim())), creator);
             }
         }
-
-        g2.dispose();
     }
 
-    private void drawRemainingTime(Graphics2D g2) {
+    private static void runLevel(String name, BufferedImage levelImage, MapCreator creator) {
+        if (levelImage.getWidth() * levelImage.getHeight() <= 1024 * 1024) {
+            measure("createMap(raster) " + name, () -> sink += creator.createMap(levelImage, name, 400).getLayout().getChunkCount());
+        }
 
-    }
+        // a view as wide as the level builds every chunk and wakes every enemy, so the work grows with the scale
+        Map1 map = creator.createMap(levelImage, name, 400);
+        map.updateChunks(0, levelImage.getWidth() * MapCreator.PIXEL_MULTIPLIER);
+        System.out.println(name + ": " + map.getLoadedChunks() + " loaded chunks, " + map.getAllBricks().size() + " bricks, "
+                + map.getEnemies().size() + " enemies, " + map.getAwakeEnemies().size() + " awake");
 
-    private void drawVictoryScreen(Graphics2D g2) {
+        GameEngine engine = GameEngine.createHeadless();
+        engine.getMapManager().setMap(map);
 
+        measure("getAllBricks " + name, () -> sink += map.getAllBricks().size());
+        measure("checkCollisions " + name, () -> engine.getMapManager().checkCollisions(engine));
+        measure("updateLocations " + name, map::updateLocations);
     }
 
-    private void drawHelpScreen(Graphics2D g2) {
-        g2.drawImage(helpScreenImage, 0, 0, null);
-    }
+    // repeats the level horizontally, giving 'scale' times the bricks and enemies
+    static BufferedImage tile(BufferedImage levelImage, int scale) {
+        int width = levelImage.getWidth(), height = levelImage.getHeight();
+        BufferedImage tiled = new BufferedImage(width * scale, height, BufferedImage.TYPE_INT_ARGB);
+        int[] row = levelImage.getRGB(0, 0, width, height, null, 0, width);
+        int mario = new Color(160, 160, 160).getRGB();
+        int end = new Color(160, 0, 160).getRGB();
 
-    private void drawAboutScreen(Graphics2D g2) {
-        g2.drawImage(aboutScreenImage, 0, 0, null);
+        for (int copy = 0; copy < scale; copy++) {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int pixel = row[y * width + x];
+                    boolean single = pixel == mario || pixel == end;
+                    if (single && copy != (pixel == mario ? 0 : scale - 1))
+                        continue;
+                    tiled.setRGB(copy * width + x, y, pixel);
+                }
+            }
+        }
+        return tiled;
     }
 
-    private void drawGameOverScreen(Graphics2D g2) {
-
-    }
+    static void measure(String name, Runnable operation) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
 
-    private void drawPauseScreen(Graphics2D g2) {
+        long warmupEnd = System.nanoTime() + WARMUP_MILLIS * 1000000L;
+        while (System.nanoTime() < warmupEnd) {
+            operation.run();
+        }
 
+        long operations = 0;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long end = start + MEASURE_MILLIS * 1000000L;
+        long now;
+        do {
+            operation.run();
+            operations++;
+            now = System.nanoTime();
+        } while (now < end);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double seconds = (now - start) / 1e9;
+        System.out.printf("%-50s %14.1f ops/s %12.3f us/op %10.1f MB/s alloc %12.1f B/op%n",
+                name, operations / seconds, seconds * 1e6 / operations, allocated / seconds / (1024 * 1024), (double) allocated / operations);
     }
+}
 
-    private void drawAcquiredCoins(Graphics2D g2) {
+class EnemyColumns {
 
-    }
+    private final int columnWidth;
+    private ArrayList<Enemy>[] columns;
+    private int[] columnOfHandle = new int[64];
 
-    private void drawRemainingLives(Graphics2D g2) {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    EnemyColumns(int columnWidth) {
+        this.columnWidth = columnWidth;
+        this.columns = new ArrayList[16];
+        Arrays.fill(columnOfHandle, -1);
+    }
 
+    void insert(Enemy enemy) {
+        int column = toColumn(enemy.getX());
+        ensureHandle(enemy.getHandle());
+        add(enemy, column);
     }
 
-    private void drawPoints(Graphics2D g2){
+    void remove(Enemy enemy) {
+        int handle = enemy.getHandle();
+        if (handle < 0 || handle >= columnOfHandle.length || columnOfHandle[handle] < 0)
+            return;
 
+        columns[columnOfHandle[handle]].remove(enemy);
+        columnOfHandle[handle] = -1;
     }
 
-    private void drawStartScreen(Graphics2D g2){
+    // moves the enemy to its new column, cheap when it stays in the same one
+    void update(Enemy enemy) {
+        int handle = enemy.getHandle();
+        int column = toColumn(enemy.getX());
+        int current = columnOfHandle[handle];
+        if (current == column)
+            return;
 
+        if (current >= 0)
+            columns[current].remove(enemy);
+        add(enemy, column);
     }
 
-    private void drawMapSelectionScreen(Graphics2D g2){
-        g2.setFont(gameFont.deriveFont(50f));
-        g2.setColor(Color.WHITE);
-        mapSelection.draw(g2);
-        int row = engine.getSelectedMap();
-        int y_location = row*100+300-selectIcon.getHeight();
-        g2.drawImage(selectIcon, 375, y_location, null);
-    }
+    void query(double minX, double maxX, ArrayList<Enemy> result) {
+        result.clear();
 
-      String selectMapViaMouse(Point mouseLocation) {
-        return mapSelection.selectMap(mouseLocation);
-    }
+        // enemies are narrower than a column, so one reaching into the range starts at most one column earlier
+        int maxColumn = Math.min(columns.length - 1, toColumn(maxX));
+        for (int column = Math.max(0, toColumn(minX) - 1); column <= maxColumn; column++) {
+            ArrayList<Enemy> enemies = columns[column];
+            if (enemies == null)
+                continue;
 
-      String selectMapViaKeyboard(int index){
-        return mapSelection.selectMap(index);
+            for (int i = 0; i < enemies.size(); i++) {
+                Enemy enemy = enemies.get(i);
+                double x = enemy.getX();
+                if (x + enemy.getDimension().width >= minX && x <= maxX)
+                    result.add(enemy);
+            }
+        }
     }
 
-      int changeSelectedMap(int index, boolean up){
-        return mapSelection.changeSelectedMap(index, up);
-    }
-}
-class Map1 {
+    private void add(Enemy enemy, int column) {
+        if (column >= columns.length)
+            columns = Arrays.copyOf(columns, Math.max(column + 1, columns.length * 2));
+        if (columns[column] == null)
+            columns[column] = new ArrayList<>();
 
-    private double remainingTime;
-    private Mario mario;
-    private ArrayList<Brick> bricks = new ArrayList<>();
-    private ArrayList<Enemy> enemies = new ArrayList<>();
-    private ArrayList<Brick> groundBricks = new ArrayList<>();
-    private ArrayList<Brick> revealedBricks = new ArrayList<>();
-    private EndFlag endPoint;
-    private BufferedImage backgroundImage;
-    private double bottomBorder = 720 - 96;
-    private String path;
+        columns[column].add(enemy);
+        columnOfHandle[enemy.getHandle()] = column;
+    }
 
+    private void ensureHandle(int handle) {
+        if (handle < columnOfHandle.length)
+            return;
 
-    public Map1(double remainingTime, BufferedImage backgroundImage) {
-        this.backgroundImage = backgroundImage;
-        this.remainingTime = remainingTime;
+        int oldLength = columnOfHandle.length;
+        columnOfHandle = Arrays.copyOf(columnOfHandle, Math.max(handle + 1, oldLength * 2));
+        Arrays.fill(columnOfHandle, oldLength, columnOfHandle.length, -1);
     }
 
+    private int toColumn(double x) {
+        return Math.max(0, (int)(x / columnWidth));
+    }
+}
 
-    public Mario getMario() {
-        return mario;
+class SweepAndPrune {
+
+    // objects sorted by their left edge. The order is kept between updates and repaired with an insertion
+    // sort, objects move a few pixels per tick so it costs about one pass. Intervals are widened by padding
+    // on both sides, the narrowphase still tests the exact bounds. Only pairs with one given object are
+    // swept, nothing consumes enemy-vs-enemy contacts yet
+    private final int padding;
+    private GameObject[] objects = new GameObject[64];
+    private double[] minX = new double[64], maxX = new double[64];
+    private int size;
+    private GameObject[] pairs = new GameObject[128];
+    private int pairCount;
+
+    SweepAndPrune(int padding) {
+        this.padding = padding;
+    }
+
+    // placed at the end, the next update sorts it in
+    void add(GameObject object) {
+        if (size == objects.length) {
+            objects = Arrays.copyOf(objects, size * 2);
+            minX = Arrays.copyOf(minX, size * 2);
+            maxX = Arrays.copyOf(maxX, size * 2);
+        }
+        objects[size++] = object;
     }
 
-    public void setMario(Mario mario) {
-        this.mario = mario;
+    void remove(GameObject object) {
+        for (int i = 0; i < size; i++) {
+            if (objects[i] == object) {
+                System.arraycopy(objects, i + 1, objects, i, size - i - 1);
+                System.arraycopy(minX, i + 1, minX, i, size - i - 1);
+                System.arraycopy(maxX, i + 1, maxX, i, size - i - 1);
+                objects[--size] = null;
+                return;
+            }
+        }
     }
 
-    public ArrayList<Enemy> getEnemies() {
-        return enemies;
+    void clear() {
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+        pairCount = 0;
     }
 
+    // re-sorts along x and fills the pair buffer with the objects whose padded interval overlaps the subject's,
+    // in sorted order. Only the neighbours of the subject within the widest interval are visited
+    void update(GameObject subject) {
+        double widest = 0;
+        for (int i = 0; i < size; i++) {
+            GameObject object = objects[i];
+            double x = object.getX();
+            minX[i] = x - padding;
+            maxX[i] = x + object.getDimension().width + padding;
+            widest = Math.max(widest, maxX[i] - minX[i]);
+        }
 
-    public ArrayList<Brick> getAllBricks() {
-        ArrayList<Brick> allBricks = new ArrayList<>();
+        for (int i = 1; i < size; i++) {
+            GameObject object = objects[i];
+            double min = minX[i], max = maxX[i];
+            int j = i - 1;
+            while (j >= 0 && minX[j] > min) {
+                objects[j + 1] = objects[j];
+                minX[j + 1] = minX[j];
+                maxX[j + 1] = maxX[j];
+                j--;
+            }
+            if (j != i - 1) {
+                objects[j + 1] = object;
+                minX[j + 1] = min;
+                maxX[j + 1] = max;
+            }
+        }
+        int index = -1;
+        for (int i = 0; i < size && index < 0; i++) {
+            if (objects[i] == subject)
+                index = i;
+        }
 
-        allBricks.addAll(bricks);
-        allBricks.addAll(groundBricks);
+        pairCount = 0;
+        if (index < 0)
+            return;
 
-        return allBricks;
+        double min = minX[index], max = maxX[index];
+        int first = index;
+        while (first > 0 && minX[first - 1] + widest >= min)
+            first--;
+        for (int j = first; j < index; j++) {
+            if (maxX[j] >= min)
+                addPair(objects[j], subject);
+        }
+        for (int j = index + 1; j < size && minX[j] <= max; j++) {
+            addPair(subject, objects[j]);
+        }
     }
 
-    public void addBrick(Brick brick) {
-        this.bricks.add(brick);
+    private void addPair(GameObject first, GameObject second) {
+        if (pairCount * 2 == pairs.length)
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        pairs[pairCount * 2] = first;
+        pairs[pairCount * 2 + 1] = second;
+        pairCount++;
     }
 
-    public void addGroundBrick(Brick brick) {
-        this.groundBricks.add(brick);
+    int getPairCount() {
+        return pairCount;
     }
 
-    public void addEnemy(Enemy enemy) {
-        this.enemies.add(enemy);
+    // the enemy in the pair when the other one is the given object, otherwise null
+    Enemy getEnemyPairedWith(int pair, GameObject object) {
+        GameObject first = pairs[pair * 2], second = pairs[pair * 2 + 1];
+        GameObject other = first == object ? second : second == object ? first : null;
+        return other instanceof Enemy ? (Enemy)other : null;
     }
+}
 
-    public void drawMap(Graphics2D g2){
-        drawBackground(g2);
-        drawBricks(g2);
-        drawEnemies(g2);
-        drawMario(g2);
-        endPoint.draw(g2);
-    }
+class StaticLayer {
 
-    private void drawBackground(Graphics2D g2){
-        g2.drawImage(backgroundImage, 0, 0, null);
-    }
+    private final BrickGrid brickGrid;
+    private final int chunkWidth;
+    private final ArrayList<Brick> chunkBricks = new ArrayList<>();
+    private AcceleratedImage[] chunks = new AcceleratedImage[8];
+    private boolean[] dirty = new boolean[8];
+    private int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+    private int drawnChunks;
 
-    private void drawBricks(Graphics2D g2) {
-        for(Brick brick : bricks){
-            if(brick != null)
-                brick.draw(g2);
-        }
+    StaticLayer(BrickGrid brickGrid, int chunkWidth) {
+        this.brickGrid = brickGrid;
+        this.chunkWidth = chunkWidth;
+    }
 
-        for(Brick brick : groundBricks){
-            brick.draw(g2);
+    // marks the chunks under the brick for re-rendering, the other chunks keep their images
+    void invalidate(Brick brick) {
+        int top = (int)brick.getY(), bottom = (int)brick.getY() + brick.getDimension().height;
+        if (top < minY || bottom > maxY) {
+            minY = Math.min(minY, top);
+            maxY = Math.max(maxY, bottom);
+            Arrays.fill(dirty, true);
         }
-    }
 
-    private void drawEnemies(Graphics2D g2) {
-        for(Enemy enemy : enemies){
-            if(enemy != null)
-                enemy.draw(g2);
+        int first = toChunk(brick.getX());
+        int last = toChunk(brick.getX() + brick.getDimension().width - 1);
+        ensureCapacity(last + 1);
+        for (int chunk = first; chunk <= last; chunk++) {
+            dirty[chunk] = true;
         }
     }
 
-    private void drawMario(Graphics2D g2) {
-        mario.draw(g2);
-    }
+    // renders dirty chunks on the calling thread, the snapshot only receives finished images
+    void addTo(RenderSnapshot snapshot, double minX, double maxX) {
+        drawnChunks = 0;
+        if (minY > maxY)
+            return;
 
-    public void updateLocations() {
-        mario.updateLocation();
-        for(Enemy enemy : enemies){
-            enemy.updateLocation();
-        }
+        int last = Math.min(chunks.length - 1, toChunk(maxX));
+        for (int chunk = toChunk(minX); chunk <= last; chunk++) {
+            if (dirty[chunk]) {
+                chunks[chunk] = render(chunk);
+                dirty[chunk] = false;
+            }
 
-        for(Iterator<Brick> brickIterator = revealedBricks.iterator(); brickIterator.hasNext();){
-            OrdinaryBrick brick = (OrdinaryBrick)brickIterator.next();
-            brick.animate();
-            if(brick.getFrames() < 0){
-                bricks.remove(brick);
-                brickIterator.remove();
+            if (chunks[chunk] != null) {
+                snapshot.add(chunks[chunk], chunk * chunkWidth, minY);
+                drawnChunks++;
             }
         }
-
-        endPoint.updateLocation();
-    }
-
-    public double getBottomBorder() {
-        return bottomBorder;
     }
 
+    private AcceleratedImage render(int chunk) {
+        int left = chunk * chunkWidth;
+        brickGrid.query(left, minY, left + chunkWidth - 1, maxY - 1, chunkBricks);
 
+        boolean hasStaticBricks = false;
+        for (int i = 0; i < chunkBricks.size() && !hasStaticBricks; i++) {
+            hasStaticBricks = chunkBricks.get(i).isStaticTerrain();
+        }
+        if (!hasStaticBricks)
+            return null;
 
-    public void setEndPoint(EndFlag endPoint) {
-        this.endPoint = endPoint;
-    }
-
-    public EndFlag getEndPoint() {
-        return endPoint;
-    }
+        int height = maxY - minY;
+        GraphicsConfiguration configuration = ImageLoader.getGraphicsConfiguration();
+        BufferedImage image = configuration != null
+                ? configuration.createCompatibleImage(chunkWidth, height, Transparency.TRANSLUCENT)
+                : new BufferedImage(chunkWidth, height, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D g2 = image.createGraphics();
+        g2.translate(-left, -minY);
+        for (int i = 0; i < chunkBricks.size(); i++) {
+            Brick brick = chunkBricks.get(i);
+            if (brick.isStaticTerrain())
+                brick.draw(g2);
+        }
+        g2.dispose();
 
-    public void addRevealedBrick(OrdinaryBrick ordinaryBrick) {
-        revealedBricks.add(ordinaryBrick);
+        return new AcceleratedImage(image);
     }
 
-    public void removeEnemy(Enemy object) {
-        enemies.remove(object);
+    int getDrawnChunks() {
+        return drawnChunks;
     }
 
-
-    public String getPath() {
-        return path;
+    void clear() {
+        Arrays.fill(chunks, null);
+        Arrays.fill(dirty, false);
     }
 
-    public void setPath(String path) {
-        this.path = path;
+    // forgets the images of the chunks left of maxX, their terrain is gone for good
+    void release(double maxX) {
+        int last = Math.min(chunks.length, (int)Math.floor(maxX / chunkWidth));
+        for (int chunk = 0; chunk < last; chunk++) {
+            chunks[chunk] = null;
+            dirty[chunk] = false;
+        }
     }
 
-    public void updateTime(double passed){
-        remainingTime = remainingTime - passed;
+    private int toChunk(double x) {
+        return Math.max(0, (int)Math.floor(x / chunkWidth));
     }
 
-    public boolean isTimeOver(){
-        return remainingTime <= 0;
-    }
+    private void ensureCapacity(int size) {
+        if (size <= chunks.length)
+            return;
 
-    public double getRemainingTime() {
-        return remainingTime;
+        int newSize = Math.max(size, chunks.length * 2);
+        chunks = Arrays.copyOf(chunks, newSize);
+        dirty = Arrays.copyOf(dirty, newSize);
     }
 }